@@ -4,10 +4,12 @@ import sys
 import time
 import string
 import socket
-import shutil
+import struct
 import subprocess
 import traceback
 import plistlib
+import re
+import json
 
 VALID_SYMBOL_CHARS = string.ascii_letters + string.digits + "$"
 
@@ -75,6 +77,7 @@ class MathMate(object):
         self.parse_tree_level = None
         
         self.tmjlink_pid = None
+        self.tmjlink_proc = None
         pidfile = os.path.join(self.cacheFolder, "tmjlink.pid")
         if os.path.exists(pidfile):
             pidfp = open(pidfile, 'r')
@@ -137,15 +140,33 @@ class MathMate(object):
         classpath.append(os.path.join(os.environ.get('TM_BUNDLE_SUPPORT'), "tmjlink/dist/tmjlink.jar"))
         classpath.append("/Applications/Mathematica.app/SystemFiles/Links/JLink/JLink.jar")
         
-        if os.path.exists(self.cacheFolder):
-            shutil.rmtree(self.cacheFolder) 
-        os.mkdir(self.cacheFolder, 0777)
+        # Keep the cache folder: it holds the session journals and images
+        # that the server restores history from
+        if not os.path.exists(self.cacheFolder):
+            os.mkdir(self.cacheFolder, 0777)
+        
+        # The server announces its port in this file once it is listening
+        portfile = os.path.join(self.cacheFolder, "tmjlink.port")
+        if os.path.exists(portfile):
+            os.remove(portfile)
         
         # Launch TextMateJLink
         textmate_pid = self.get_textmate_pid()
         logfp = open(os.path.join(self.cacheFolder, "tmjlink.log"), 'w')
+        # memoize replays unchanged side-effect-free statements. Statements
+        # calling user or package functions are always evaluated, but the
+        # effects of built-ins are only known from a fixed list, so it is
+        # off by default
         proc = subprocess.Popen(['/usr/bin/java', 
                 '-cp', ":".join(classpath), 
+                '-Dtmjlink.kernel.spares=%s' % self.read_default("spare_kernels", "1"), 
+                '-Dtmjlink.memo=%s' % str(self.read_default("memoize", "0") in ("1", "true", "YES")).lower(), 
+                '-Dtmjlink.symbols=%s' % os.path.join(os.environ.get('TM_BUNDLE_SUPPORT'), "tools/symbols.json"), 
+                '-Dtmjlink.log.level=%s' % self.read_default("log_level", "INFO"), 
+                '-Dtmjlink.evaluation.deadline=%s' % self.read_default("evaluation_deadline", "0"), 
+                '-Dtmjlink.preview.chars=%s' % self.read_default("preview_chars", "16384"), 
+                '-Dtmjlink.web=%s' % os.path.join(os.environ.get('TM_BUNDLE_SUPPORT'), "web"), 
+                '-Dtmjlink.http.port=%s' % self.read_default("http_port", "0"), 
                 'com.shadanan.textmatejlink.TextMateJLink', 
                 self.cacheFolder, str(textmate_pid)] + self.mlargs,
             stdout=logfp, stderr=subprocess.STDOUT)
@@ -155,57 +176,110 @@ class MathMate(object):
         pidfp = open(os.path.join(self.cacheFolder, "tmjlink.pid"), 'w')
         pidfp.write(str(proc.pid))
         pidfp.close()
+        self.tmjlink_pid = proc.pid
+        self.tmjlink_proc = proc
     
-    def readtotal(self, sock, count):
-        result = []
-        total_read = 0
+    def fill(self, sock):
+        buff = sock.recv(65536)
+        if buff == "":
+            return False
         
-        while total_read != count:
-            buff = sock.recv(count - total_read)
+        if not self.framed:
+            self.recv_buffer += buff
+            return True
+        
+        self.frame_buffer += buff
+        self.decode_frames()
+        return True
+    
+    def decode_frames(self):
+        # Protocol 2 frames are turned back into protocol 1 lines, with the
+        # byte count of inline bodies, so that the readers below need not
+        # know which protocol is spoken
+        pos = 0
+        while len(self.frame_buffer) - pos >= 4:
+            length = struct.unpack(">I", self.frame_buffer[pos:pos + 4])[0]
+            if len(self.frame_buffer) - pos < 4 + length:
+                break
             
-            if buff == "":
+            frame = self.frame_buffer[pos + 4:pos + 4 + length]
+            pos += 4 + length
+            newline = frame.find("\n")
+            if newline == -1:
+                self.recv_buffer += frame + "\n"
+            else:
+                words = frame[:newline].split(" ")
+                words.insert(1, str(length - newline))
+                self.recv_buffer += " ".join(words) + "\n" + frame[newline + 1:] + "\n"
+        
+        self.frame_buffer = self.frame_buffer[pos:]
+    
+    def send(self, sock, line, payload = None):
+        line = line.rstrip()
+        if self.framed:
+            data = line if payload is None else line + "\n" + payload
+            sock.sendall(struct.pack(">I", len(data)) + data)
+        elif payload is None:
+            sock.sendall(line + "\n")
+        else:
+            sock.sendall("%s %d\n" % (line, len(payload)))
+            sock.sendall(payload)
+    
+    def readtotal(self, sock, count):
+        while len(self.recv_buffer) < count:
+            if not self.fill(sock):
                 raise Exception("The server quit unexpectedly.")
-                
-            result.append(buff)
-            total_read += len(buff)
         
-        return "".join(result)
+        result = self.recv_buffer[:count]
+        self.recv_buffer = self.recv_buffer[count:]
+        return result
     
     def readline(self, sock):
-        result = []
-        while True:
-            char = sock.recv(1)
-            
-            if char == "\r":
-                continue
-                
-            if char == "\n":
-                break
-                
-            if char == "":
+        while self.recv_buffer.find("\n") == -1:
+            if not self.fill(sock):
                 return None
-                
-            result.append(char)
-            
-        return "".join(result)
+        
+        pos = self.recv_buffer.find("\n")
+        result = self.recv_buffer[:pos]
+        self.recv_buffer = self.recv_buffer[pos + 1:]
+        return result.replace("\r", "")
     
     def connect(self):
         self.launch_tmjlink()
         
         # Wait for server to be ready and get listen port
-        logfp = open(os.path.join(self.cacheFolder, "tmjlink.log"), 'r')
-        while True:
-            line = logfp.readline()
-            if line == "":
-                time.sleep(0.1)
-                continue
-            if line.strip().startswith("Server started on port: "):
-                port = int(line.strip()[24:])
-                break
-        logfp.close()
+        portfile = os.path.join(self.cacheFolder, "tmjlink.port")
+        while not os.path.exists(portfile):
+            if self.tmjlink_proc is not None and self.tmjlink_proc.poll() is not None:
+                raise Exception("The server failed to start, see %s" % os.path.join(self.cacheFolder, "tmjlink.log"))
+            time.sleep(0.1)
+        portfp = open(portfile, 'r')
+        port = int(portfp.read().strip())
+        portfp.close()
     
         sock = socket.socket()
         sock.connect(("localhost", port))
+        self.recv_buffer = ""
+        self.frame_buffer = ""
+        self.framed = False
+        
+        # Switch to length-prefixed frames, which spare the server scanning
+        # large statements and HTML for line ends. The greeting and the
+        # reply still come as lines; the greeting is left for the caller.
+        # Servers without protocol 2 answer with an exception and the
+        # connection stays on protocol 1.
+        sock.sendall("protocol 2\n")
+        greeting = self.readline(sock)
+        reply = self.readline(sock)
+        if greeting is None or reply is None:
+            raise Exception("The server quit unexpectedly.")
+        
+        if reply.startswith("okay -- protocol 2"):
+            self.framed = True
+            self.frame_buffer = self.recv_buffer
+            self.recv_buffer = ""
+            self.decode_frames()
+        self.recv_buffer = greeting + "\n" + self.recv_buffer
         return sock
     
     def read(self, sock):
@@ -231,7 +305,42 @@ class MathMate(object):
             return default
         return proc.stdout.read().strip()
     
-    def inline(self, statements, force_image = False):
+    def get_header_file(self):
+        return os.path.join(self.cacheFolder, "%s.header" % self.sessid)
+    
+    def load_header(self):
+        try:
+            fp = open(self.get_header_file(), 'r')
+            version = fp.readline().strip()
+            groups = []
+            self.merge_header(groups, fp.read())
+            fp.close()
+            return (version, groups)
+        except IOError:
+            return (None, [])
+    
+    def save_header(self, version, groups):
+        fp = open(self.get_header_file(), 'w')
+        fp.write(version + "\n")
+        fp.write("".join(map(lambda x: x[1], groups)))
+        fp.close()
+    
+    def merge_header(self, groups, content):
+        # Cell groups replace the group with the same id or are appended
+        starts = [m.start() for m in re.finditer(r"<div id='resource_\d+' class='cellgroup'>", content)]
+        for index, start in enumerate(starts):
+            end = starts[index + 1] if index + 1 < len(starts) else len(content)
+            html = content[start:end]
+            group_id = html[len("<div id='"):html.index("'", len("<div id='"))]
+            
+            for pos, (existing_id, existing_html) in enumerate(groups):
+                if existing_id == group_id:
+                    groups[pos] = (group_id, html)
+                    break
+            else:
+                groups.append((group_id, html))
+    
+    def inline(self, statements, force_image = False, incremental = False):
         white_space = self.read_default("white_space", "Normal")
         white_space_mode = "pre" if white_space == "Pre" else "normal"
         
@@ -364,7 +473,7 @@ class MathMate(object):
 
                 if state == 0:
                     if response == "okay":
-                        sock.send("sessid %s\n" % self.sessid)
+                        self.send(sock, "sessid %s" % self.sessid)
                         state = 1
                         continue
 
@@ -375,7 +484,11 @@ class MathMate(object):
             
                 if state == 1:
                     if response == "okay":
-                        sock.send("header\n")
+                        header_version, header_groups = self.load_header()
+                        if header_version is not None:
+                            self.send(sock, "header since %s" % header_version)
+                        else:
+                            self.send(sock, "header")
                         state = 2
                         continue
                     
@@ -385,25 +498,42 @@ class MathMate(object):
                     raise Exception("Unexpected message from JLink server: " + line)
             
                 if state == 2:
+                    if response == "resync":
+                        header_groups = []
+                        continue
+                    
                     if response == "okay":
-                        statement = None
+                        if comment is not None and comment.startswith("version "):
+                            self.save_header(comment[8:], header_groups)
+                            sys.stdout.write("".join(map(lambda x: x[1], header_groups)))
+                            sys.stdout.flush()
                         
-                        while len(statements) > 0:
-                            statement = statements.pop(0).rstrip()
-                            if statement != "":
-                                break
-                            statement = None
+                        statements = filter(lambda x: x != "", map(lambda x: x.rstrip(), statements))
                         
-                        if statement is None:
-                            sock.send("quit\n")
+                        if len(statements) == 0:
+                            self.send(sock, "quit")
                             state = 4
                             continue
-                            
-                        if force_image:
-                            sock.send("image %d\n" % len(statement))
-                        else:
-                            sock.send("execute %d\n" % len(statement))
-                        sock.send(statement)
+                        
+                        # Let the server work out which statements of the document
+                        # changed since the last run and evaluate only those
+                        if incremental:
+                            document = "\0".join(statements)
+                            options = "parallel " if self.read_default("parallel_execution", "0") in ("1", "true", "YES") else ""
+                            self.send(sock, "submit 0 document " + options, document)
+                            pending = 1
+                            state = 5
+                            continue
+                        
+                        # Send every statement in one batch; the server evaluates
+                        # them back to back and tags their output with request 0
+                        flag = "i" if force_image else "e"
+                        batch = "\0".join(map(lambda x: flag + x, statements))
+                        options = "stop " if self.read_default("stop_on_message", "0") in ("1", "true", "YES") else ""
+                        self.send(sock, "submit 0 execdoc " + options, batch)
+                        
+                        pending = 1
+                        state = 5
                         continue
 
                     if words[0] == "inline":
@@ -417,10 +547,13 @@ class MathMate(object):
                     raise Exception("Unexpected message from JLink server: " + line)
             
                 if state == 3:
-                    sys.stdout.write(content)
-                    sys.stdout.flush()
+                    if len(words) < 3:
+                        self.merge_header(header_groups, content.rstrip("\n"))
+                    else:
+                        sys.stdout.write(content)
+                        sys.stdout.flush()
                     readsize = None
-                    state = 2
+                    state = 2 if len(words) < 3 else 5
                     continue
             
                 if state == 4:
@@ -432,6 +565,31 @@ class MathMate(object):
                         raise Exception("TextMateJLink Exception: " + comment)
 
                     raise Exception("Unexpected message from JLink server: " + line)
+                
+                if state == 5:
+                    if words[0] == "inline":
+                        readsize = int(words[1])
+                        state = 3
+                        continue
+                    
+                    if words[0] == "summary":
+                        summary = json.loads(line[8:])
+                        sys.stdout.write('<div class="time">%d of %d statements in %dms</div>' % 
+                            (summary["evaluated"], summary["total"], summary["time"]))
+                        sys.stdout.flush()
+                        continue
+                    
+                    if words[0] == "done":
+                        pending -= 1
+                        if pending == 0:
+                            self.send(sock, "quit")
+                            state = 4
+                        continue
+                    
+                    if words[0] == "failed":
+                        raise Exception("TextMateJLink Exception: " + comment)
+
+                    raise Exception("Unexpected message from JLink server: " + line)
 
                 raise Exception("Invalid state: " + state)
             
@@ -460,7 +618,7 @@ class MathMate(object):
             
             if state == 0:
                 if response == "okay":
-                    sock.send("sessid %s\n" % self.sessid)
+                    self.send(sock, "sessid %s" % self.sessid)
                     state = 1
                     continue
             
@@ -471,8 +629,7 @@ class MathMate(object):
                 
             if state == 1:
                 if response == "okay":
-                    sock.send("intexec %d\n" % len(command))
-                    sock.send(command)
+                    self.send(sock, "intexec", command)
                     state = 2
                     continue
                         
@@ -483,7 +640,7 @@ class MathMate(object):
             
             if state == 2:
                 if response == "okay":
-                    sock.send("quit\n")
+                    self.send(sock, "quit")
                     state = 4
                     continue
 
@@ -517,6 +674,79 @@ class MathMate(object):
         
         return result
     
+    def inspect(self, count, query):
+        # Asks about a result the server still holds, e.g. inspect(12, "length")
+        # or inspect(-1, "part 1;;10"), without evaluating anything
+        result = None
+        sock = self.connect()
+        
+        state = 0
+        readsize = None
+        while True:
+            if readsize is not None:
+                content = self.readtotal(sock, readsize)
+            else:
+                line, response, words, comment = self.read(sock)
+            
+            if state == 0:
+                if response == "okay":
+                    self.send(sock, "sessid %s" % self.sessid)
+                    state = 1
+                    continue
+            
+                if response == "exception":
+                    raise Exception("TextMateJLink Exception: " + comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+                
+            if state == 1:
+                if response == "okay":
+                    self.send(sock, "out %d %s" % (count, query))
+                    state = 2
+                    continue
+                        
+                if response == "exception":
+                    raise Exception("TextMateJLink Exception: " + comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+            
+            if state == 2:
+                if response == "okay":
+                    self.send(sock, "quit")
+                    state = 4
+                    continue
+
+                if words[0] == "inline":
+                    readsize = int(words[1])
+                    state = 3
+                    continue
+
+                if response == "exception":
+                    sock.close()
+                    raise Exception(comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+                
+            if state == 3:
+                result = content[:-1]
+                readsize = None
+                state = 2
+                continue
+            
+            if state == 4:
+                if response == "okay":
+                    sock.close()
+                    break
+
+                if response == "exception":
+                    raise Exception("TextMateJLink Exception: " + comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+                
+            raise Exception("Invalid state: " + state)
+        
+        return result
+    
     def clear(self):
         sock = self.connect()
         
@@ -526,7 +756,7 @@ class MathMate(object):
             
             if state == 0:
                 if response == "okay":
-                    sock.send("sessid %s\n" % self.sessid)
+                    self.send(sock, "sessid %s" % self.sessid)
                     state = 1
                     continue
             
@@ -537,7 +767,7 @@ class MathMate(object):
                 
             if state == 1:
                 if response == "okay":
-                    sock.send("clear\n")
+                    self.send(sock, "clear")
                     state = 2
                     continue
                         
@@ -548,7 +778,7 @@ class MathMate(object):
             
             if state == 2:
                 if response == "okay":
-                    sock.send("quit\n")
+                    self.send(sock, "quit")
                     state = 3
                     continue
             
@@ -571,6 +801,128 @@ class MathMate(object):
         
         return "Session Cleared"
             
+    def abort(self):
+        sock = self.connect()
+
+        state = 0
+        while True:
+            line, response, words, comment = self.read(sock)
+
+            if state == 0:
+                if response == "okay":
+                    # Naming the session lets the server abort it right away,
+                    # even while another connection is evaluating in it
+                    self.send(sock, "abort %s" % self.sessid)
+                    state = 1
+                    continue
+
+                if response == "exception":
+                    raise Exception("TextMateJLink Exception: " + comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+
+            if state == 1:
+                if response == "okay":
+                    self.send(sock, "quit")
+                    state = 2
+                    continue
+
+                if response == "exception":
+                    sock.close()
+                    return "Nothing to abort"
+
+                raise Exception("Unexpected message from JLink server: " + line)
+
+            if state == 2:
+                if response == "okay":
+                    sock.close()
+                    break
+
+                if response == "exception":
+                    raise Exception("TextMateJLink Exception: " + comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+
+            raise Exception("Invalid state: " + state)
+
+        return "Evaluation Aborted"
+
+    def fetch(self, count = None):
+        result = []
+        sock = self.connect()
+
+        state = 0
+        readsize = None
+        while True:
+            if readsize is not None:
+                content = self.readtotal(sock, readsize)
+            else:
+                line, response, words, comment = self.read(sock)
+
+            if state == 0:
+                if response == "okay":
+                    self.send(sock, "sessid %s" % self.sessid)
+                    state = 1
+                    continue
+
+                if response == "exception":
+                    raise Exception("TextMateJLink Exception: " + comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+
+            if state == 1:
+                if response == "okay":
+                    # Without a number the server picks the last shortened output
+                    if count is None:
+                        self.send(sock, "fetch")
+                    else:
+                        self.send(sock, "fetch %d" % count)
+                    state = 2
+                    continue
+
+                if response == "exception":
+                    raise Exception("TextMateJLink Exception: " + comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+
+            # The full text arrives as a series of inline chunks
+            if state == 2:
+                if response == "okay":
+                    self.send(sock, "quit")
+                    state = 4
+                    continue
+
+                if words[0] == "inline":
+                    readsize = int(words[1])
+                    state = 3
+                    continue
+
+                if response == "exception":
+                    sock.close()
+                    return None
+
+                raise Exception("Unexpected message from JLink server: " + line)
+
+            if state == 3:
+                result.append(content[:-1])
+                readsize = None
+                state = 2
+                continue
+
+            if state == 4:
+                if response == "okay":
+                    sock.close()
+                    break
+
+                if response == "exception":
+                    raise Exception("TextMateJLink Exception: " + comment)
+
+                raise Exception("Unexpected message from JLink server: " + line)
+
+            raise Exception("Invalid state: " + state)
+
+        return "".join(result)
+
     def reset(self):
         sock = self.connect()
 
@@ -580,7 +932,7 @@ class MathMate(object):
 
             if state == 0:
                 if response == "okay":
-                    sock.send("sessid %s\n" % self.sessid)
+                    self.send(sock, "sessid %s" % self.sessid)
                     state = 1
                     continue
 
@@ -591,7 +943,7 @@ class MathMate(object):
 
             if state == 1:
                 if response == "okay":
-                    sock.send("reset\n")
+                    self.send(sock, "reset")
                     state = 2
                     continue
 
@@ -602,7 +954,7 @@ class MathMate(object):
 
             if state == 2:
                 if response == "okay":
-                    sock.send("quit\n")
+                    self.send(sock, "quit")
                     state = 3
                     continue
 
@@ -625,7 +977,7 @@ class MathMate(object):
 
         return "Session Reset"
 
-    def get_symbols(self):
+    def get_symbols(self, prefix = "", limit = 1000):
         sock = self.connect()
 
         state = 0
@@ -634,7 +986,7 @@ class MathMate(object):
 
             if state == 0:
                 if response == "okay":
-                    sock.send("sessid %s\n" % self.sessid)
+                    self.send(sock, "sessid %s" % self.sessid)
                     state = 1
                     continue
 
@@ -645,7 +997,7 @@ class MathMate(object):
 
             if state == 1:
                 if response == "okay":
-                    sock.send("suggest\n")
+                    self.send(sock, "suggest %s %d" % (prefix, limit))
                     state = 2
                     continue
 
@@ -657,7 +1009,7 @@ class MathMate(object):
             if state == 2:
                 if words[0] == "suggestions":
                     result = eval(words[1])
-                    sock.send("quit\n")
+                    self.send(sock, "quit")
                     state = 3
                     continue
 
@@ -1154,7 +1506,7 @@ class MathMate(object):
         
         fnname = "".join(fnname)
         
-        suggestions = filter(lambda x: x != "?" and x.startswith(fnname), self.get_symbols())
+        suggestions = filter(lambda x: x != "?" and x.startswith(fnname), self.get_symbols(fnname))
         
         if len(suggestions) == 0:
             exit_show_tool_tip("No suggestions.")
@@ -0,0 +1,62 @@
+package com.shadanan.textmatejlink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One benchmark of the suite. The runner calls setUp once, then run() over
+ * and over for the warmup and measurement iterations, then tearDown. The
+ * value returned by run() is consumed by the runner so that the JIT cannot
+ * drop the work.
+ */
+public abstract class Benchmark {
+	private String name = null;
+	private LinkedHashMap<String, String> params = null;
+	private int operations = 1;
+	
+	public Benchmark(String name) {
+		this.name = name;
+		this.params = new LinkedHashMap<String, String>();
+	}
+	
+	public Benchmark param(String key, Object value) {
+		params.put(key, String.valueOf(value));
+		return this;
+	}
+	
+	/**
+	 * Sets how many operations a single run() performs, so that the score
+	 * is reported per operation rather than per invocation.
+	 */
+	public Benchmark operations(int operations) {
+		this.operations = operations;
+		return this;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public Map<String, String> getParams() {
+		return params;
+	}
+	
+	public int getOperations() {
+		return operations;
+	}
+	
+	public String getId() {
+		StringBuilder result = new StringBuilder(name);
+		for (Map.Entry<String, String> entry : params.entrySet())
+			result.append(":").append(entry.getKey()).append("=").append(entry.getValue());
+		return result.toString();
+	}
+	
+	public void setUp() throws Exception {
+	}
+	
+	public abstract Object run() throws Exception;
+	
+	public void tearDown() throws Exception {
+	}
+}
@@ -0,0 +1,192 @@
+package com.shadanan.textmatejlink;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs the benchmark suite against fake kernels and writes the results as
+ * JSON in the layout JMH uses, so they can be compared between releases.
+ * Each benchmark gets warmup iterations followed by measured iterations of
+ * a fixed duration, all in this JVM. The server's console logging is
+ * discarded while benchmarks run.
+ *
+ * Usage: BenchmarkRunner [results.json] [filter]
+ */
+public class BenchmarkRunner {
+	// Two-sided 99.9% Student's t quantiles for 1 to 10 degrees of freedom
+	private static final double[] T_999 = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587 };
+	
+	private static volatile int sink = 0;
+	
+	private int warmups = 0;
+	private int iterations = 0;
+	private long time = 0;
+	private PrintStream console = null;
+	
+	public BenchmarkRunner() {
+		this.warmups = Integer.getInteger("tmjlink.bench.warmup", 3);
+		this.iterations = Integer.getInteger("tmjlink.bench.iterations", 5);
+		this.time = Long.getLong("tmjlink.bench.time", 1000);
+		this.console = System.out;
+	}
+	
+	public static List<Benchmark> suite() {
+		ArrayList<Benchmark> suite = new ArrayList<Benchmark>();
+		for (int cells : new int[] { 10, 1000, 10000 }) {
+			suite.add(new RenderBenchmark(cells, true));
+			suite.add(new RenderBenchmark(cells, false));
+		}
+		suite.add(new EscapeBenchmark(200));
+		suite.add(new EscapeBenchmark(4 * 1024 * 1024));
+		suite.add(new CommifyBenchmark());
+		suite.add(new FramingBenchmark(0));
+		suite.add(new FramingBenchmark(64));
+		suite.add(new FramingBenchmark(64 * 1024));
+		suite.add(new SuggestionsBenchmark("", Integer.MAX_VALUE));
+		suite.add(new SuggestionsBenchmark("Li", 100));
+		return suite;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		String output = args.length > 0 ? args[0] : "bench-results.json";
+		String filter = args.length > 1 ? args[1] : "";
+		
+		BenchmarkRunner runner = new BenchmarkRunner();
+		StringBuilder json = new StringBuilder("[");
+		
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		
+		try {
+			for (Benchmark benchmark : suite()) {
+				if (!benchmark.getId().contains(filter))
+					continue;
+				
+				double[] scores = runner.run(benchmark);
+				if (json.length() > 1)
+					json.append(",");
+				json.append("\n").append(runner.toJson(benchmark, scores));
+			}
+		} finally {
+			System.setOut(runner.console);
+		}
+		
+		json.append("\n]\n");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(output), Session.UTF8);
+		try {
+			writer.write(json.toString());
+		} finally {
+			writer.close();
+		}
+		System.out.println("Results written to: " + output);
+	}
+	
+	public double[] run(Benchmark benchmark) throws Exception {
+		console.println("# " + benchmark.getId());
+		double[] scores = new double[iterations];
+		
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < warmups; i++)
+				console.println(String.format(Locale.US, "Warmup %d: %.3f ops/s", i + 1, iterate(benchmark)));
+			for (int i = 0; i < iterations; i++) {
+				scores[i] = iterate(benchmark);
+				console.println(String.format(Locale.US, "Iteration %d: %.3f ops/s", i + 1, scores[i]));
+			}
+		} finally {
+			benchmark.tearDown();
+		}
+		
+		console.println(String.format(Locale.US, "Result: %.3f +- %.3f ops/s", mean(scores), error(scores)));
+		console.println();
+		return scores;
+	}
+	
+	/**
+	 * Calls the benchmark until the iteration time is up and returns the
+	 * operations per second.
+	 */
+	private double iterate(Benchmark benchmark) throws Exception {
+		long start = System.nanoTime();
+		long deadline = start + time * 1000000;
+		long invocations = 0;
+		long now;
+		int hash = 0;
+		
+		do {
+			hash ^= System.identityHashCode(benchmark.run());
+			invocations++;
+			now = System.nanoTime();
+		} while (now < deadline);
+		
+		sink = hash;
+		return invocations * benchmark.getOperations() * 1e9 / (now - start);
+	}
+	
+	private static double mean(double[] scores) {
+		double sum = 0;
+		for (double score : scores)
+			sum += score;
+		return scores.length == 0 ? 0 : sum / scores.length;
+	}
+	
+	/**
+	 * Half width of the 99.9% confidence interval of the mean.
+	 */
+	private static double error(double[] scores) {
+		int n = scores.length;
+		if (n < 2)
+			return 0;
+		
+		double mean = mean(scores);
+		double squares = 0;
+		for (double score : scores)
+			squares += (score - mean) * (score - mean);
+		
+		double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.291;
+		return t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+	}
+	
+	private String toJson(Benchmark benchmark, double[] scores) {
+		StringBuilder result = new StringBuilder();
+		result.append("{\"benchmark\":\"").append(benchmark.getName()).append("\",\"mode\":\"thrpt\",\"threads\":1,\"forks\":0");
+		result.append(",\"warmupIterations\":").append(warmups).append(",\"warmupTime\":\"").append(time).append(" ms\"");
+		result.append(",\"measurementIterations\":").append(iterations).append(",\"measurementTime\":\"").append(time).append(" ms\"");
+		
+		result.append(",\"params\":{");
+		boolean first = true;
+		for (Map.Entry<String, String> entry : benchmark.getParams().entrySet()) {
+			if (!first)
+				result.append(",");
+			result.append('"').append(entry.getKey()).append("\":\"").append(entry.getValue()).append('"');
+			first = false;
+		}
+		
+		result.append("},\"primaryMetric\":{\"score\":").append(format(mean(scores)));
+		result.append(",\"scoreError\":").append(format(error(scores))).append(",\"scoreUnit\":\"ops/s\",\"rawData\":[[");
+		for (int i = 0; i < scores.length; i++) {
+			if (i > 0)
+				result.append(",");
+			result.append(format(scores[i]));
+		}
+		result.append("]]}}");
+		
+		return result.toString();
+	}
+	
+	private static String format(double value) {
+		return String.format(Locale.US, "%.3f", value);
+	}
+}
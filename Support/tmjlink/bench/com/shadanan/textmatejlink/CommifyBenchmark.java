@@ -0,0 +1,21 @@
+package com.shadanan.textmatejlink;
+
+/**
+ * Resources.commify() over execution times of every magnitude.
+ */
+public class CommifyBenchmark extends Benchmark {
+	private static final long[] VALUES = { 0, 7, 42, 999, 1000, 12345, 654321, 9876543210L };
+	
+	public CommifyBenchmark() {
+		super(CommifyBenchmark.class.getName() + ".commify");
+		operations(VALUES.length);
+	}
+	
+	@Override
+	public Object run() {
+		int length = 0;
+		for (long value : VALUES)
+			length += Resources.commify(value).length();
+		return length;
+	}
+}
@@ -0,0 +1,42 @@
+package com.shadanan.textmatejlink;
+
+import com.wolfram.jlink.MathLink;
+
+/**
+ * Resource.getHtmlEscapedValue() on an output of the given size, made of
+ * typical Mathematica output with rules, strings and comparisons.
+ */
+public class EscapeBenchmark extends Benchmark {
+	private static final String SAMPLE = "{x -> \"a < b\", y -> 1 & 2, z -> {<|\"k\" -> 3|>}}\n";
+	
+	private int size = 0;
+	private ResourcesFixture fixture = null;
+	private Resources.Resource resource = null;
+	
+	public EscapeBenchmark(int size) {
+		super(EscapeBenchmark.class.getName() + ".getHtmlEscapedValue");
+		this.size = size;
+		param("size", size);
+	}
+	
+	@Override
+	public void setUp() throws Exception {
+		StringBuilder value = new StringBuilder(size + SAMPLE.length());
+		while (value.length() < size)
+			value.append(SAMPLE);
+		value.setLength(size);
+		
+		fixture = new ResourcesFixture(0);
+		resource = fixture.getResources().new Resource(MathLink.RETURNPKT, value.toString());
+	}
+	
+	@Override
+	public Object run() {
+		return resource.getHtmlEscapedValue();
+	}
+	
+	@Override
+	public void tearDown() {
+		fixture.close();
+	}
+}
@@ -0,0 +1,101 @@
+package com.shadanan.textmatejlink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Command framing throughput of a real Server over a loopback socket. The
+ * client sends a batch of commands without picking a session first, so
+ * each one is parsed and answered with a single line without touching a
+ * kernel. A payload size of 0 sends bare command lines (Session.readLine),
+ * anything else sends execute commands with a payload (Session.readData).
+ */
+public class FramingBenchmark extends Benchmark {
+	private static final int BATCH = 100;
+	
+	private int payloadSize = 0;
+	private File cacheFolder = null;
+	private Server server = null;
+	private Socket socket = null;
+	private byte[] request = null;
+	private byte[] buffer = null;
+	
+	public FramingBenchmark(int payloadSize) {
+		super(FramingBenchmark.class.getName() + (payloadSize == 0 ? ".readLine" : ".readData"));
+		this.payloadSize = payloadSize;
+		if (payloadSize != 0)
+			param("payload", payloadSize);
+		operations(BATCH);
+	}
+	
+	@Override
+	public void setUp() throws Exception {
+		System.setProperty("tmjlink.kernel.backend", KernelPool.FAKE);
+		System.setProperty("tmjlink.kernel.spares", "0");
+		cacheFolder = File.createTempFile("tmjlink-bench", "");
+		cacheFolder.delete();
+		cacheFolder.mkdirs();
+		
+		// The server exits when the process it watches is gone, so let it watch us
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int pid = Integer.parseInt(name.substring(0, name.indexOf('@')));
+		server = new Server(cacheFolder.getPath(), pid, new String[0]);
+		server.start();
+		while (server.getPort() == 0)
+			Thread.sleep(10);
+		
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress("127.0.0.1", server.getPort()));
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] payload = new byte[payloadSize];
+		for (int i = 0; i < payloadSize; i++)
+			payload[i] = (byte)('a' + i % 26);
+		for (int i = 0; i < BATCH; i++) {
+			if (payloadSize == 0) {
+				bytes.write("header\n".getBytes(Session.UTF8));
+			} else {
+				bytes.write(("execute " + payloadSize + "\n").getBytes(Session.UTF8));
+				bytes.write(payload);
+			}
+		}
+		request = bytes.toByteArray();
+		buffer = new byte[65536];
+	}
+	
+	@Override
+	public Object run() throws Exception {
+		OutputStream out = socket.getOutputStream();
+		InputStream in = socket.getInputStream();
+		out.write(request);
+		out.flush();
+		
+		int lines = 0;
+		int total = 0;
+		while (lines < BATCH) {
+			int read = in.read(buffer);
+			if (read == -1)
+				throw new IllegalStateException("Server closed the connection");
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] == '\n')
+					lines++;
+			}
+			total += read;
+		}
+		return total;
+	}
+	
+	@Override
+	public void tearDown() throws Exception {
+		socket.close();
+		server.shutdown();
+		server.join();
+		Resources.delete(cacheFolder);
+	}
+}
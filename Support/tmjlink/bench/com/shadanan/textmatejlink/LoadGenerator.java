@@ -0,0 +1,344 @@
+package com.shadanan.textmatejlink;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a number of concurrent clients speaking the socket protocol, each
+ * in its own session, and reports throughput and latency percentiles per
+ * command. Without a target it starts an in-process server on FakeKernel.
+ * 
+ * Usage: LoadGenerator [host:port]
+ * 
+ * tmjlink.load.clients (default 8) and tmjlink.load.duration (seconds,
+ * default 10) size the run; tmjlink.load.output names a file to write the
+ * report to as JSON. The tmjlink.fake.* properties shape the in-process
+ * kernels, see FakeKernel.
+ */
+public class LoadGenerator {
+	private static final String[] COMMANDS = { "execute", "image", "header", "suggest" };
+	private static final int[] WEIGHTS = { 50, 10, 25, 15 };
+	private static final String[] PREFIXES = { "Li", "Pl", "Ta", "Sym1", "fake", "x" };
+	
+	private Histogram[] latencies = null;
+	private AtomicLong errors = null;
+	private String host = null;
+	private int port = 0;
+	private int clients = 0;
+	private long duration = 0;
+	private String runId = null;
+	
+	public LoadGenerator(String host, int port, int clients, long duration) {
+		this.host = host;
+		this.port = port;
+		this.clients = clients;
+		this.duration = duration;
+		this.errors = new AtomicLong();
+		this.runId = Long.toString(System.currentTimeMillis(), 36);
+		this.latencies = new Histogram[COMMANDS.length];
+		for (int i = 0; i < COMMANDS.length; i++)
+			latencies[i] = new Histogram();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		String target = args.length > 0 && args[0].length() > 0 ? args[0] : null;
+		int clients = Integer.getInteger("tmjlink.load.clients", 8);
+		long duration = Long.getLong("tmjlink.load.duration", 10);
+		String output = System.getProperty("tmjlink.load.output");
+		
+		PrintStream console = System.out;
+		Server server = null;
+		File cacheFolder = null;
+		String host = "127.0.0.1";
+		int port;
+		
+		if (target != null) {
+			host = target.substring(0, target.lastIndexOf(':'));
+			port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+		} else {
+			// The in-process server logs every message; keep that off the report
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {
+				}
+				
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+			
+			cacheFolder = File.createTempFile("tmjlink-load", "");
+			cacheFolder.delete();
+			cacheFolder.mkdirs();
+			System.setProperty("tmjlink.kernel.backend", KernelPool.FAKE);
+			
+			String name = ManagementFactory.getRuntimeMXBean().getName();
+			server = new Server(cacheFolder.getPath(), Integer.parseInt(name.substring(0, name.indexOf('@'))), new String[0]);
+			server.start();
+			while (server.getPort() == 0)
+				Thread.sleep(10);
+			port = server.getPort();
+		}
+		
+		console.println("Running " + clients + " clients against " + host + ":" + port + " for " + duration + "s...");
+		LoadGenerator generator = new LoadGenerator(host, port, clients, duration);
+		long elapsed = generator.run();
+		
+		if (server != null) {
+			server.shutdown();
+			server.join();
+			Resources.delete(cacheFolder);
+			System.setOut(console);
+		}
+		
+		generator.report(console, elapsed);
+		if (output != null) {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(output), Session.UTF8);
+			try {
+				writer.write(generator.toJson(elapsed));
+				writer.write("\n");
+			} finally {
+				writer.close();
+			}
+			console.println("Results written to: " + output);
+		}
+	}
+	
+	/**
+	 * Runs all clients until the duration is up and returns the elapsed
+	 * nanoseconds.
+	 */
+	public long run() throws InterruptedException {
+		final CountDownLatch ready = new CountDownLatch(clients);
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] deadline = new long[1];
+		Thread[] threads = new Thread[clients];
+		
+		for (int i = 0; i < clients; i++) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					Client client = null;
+					try {
+						client = new Client(index);
+					} catch (IOException e) {
+						fail(index, e);
+					} finally {
+						ready.countDown();
+					}
+					
+					if (client == null)
+						return;
+					try {
+						start.await();
+						client.run(deadline[0]);
+					} catch (Exception e) {
+						fail(index, e);
+					} finally {
+						client.close();
+					}
+				}
+			}, "tmjlink-load-" + i);
+			threads[i].start();
+		}
+		
+		ready.await();
+		long begin = System.nanoTime();
+		deadline[0] = begin + duration * 1000000000L;
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		return System.nanoTime() - begin;
+	}
+	
+	private void fail(int index, Exception e) {
+		errors.incrementAndGet();
+		System.err.println("Client " + index + " failed: " + e.getMessage());
+	}
+	
+	public void report(PrintStream out, long elapsed) {
+		double seconds = elapsed / 1e9;
+		long total = 0;
+		for (Histogram histogram : latencies)
+			total += histogram.getCount();
+		
+		out.println(String.format(Locale.US, "%d requests in %.1fs, %.1f requests/s, %d errors", 
+				total, seconds, total / seconds, errors.get()));
+		out.println(String.format(Locale.US, "%-10s %10s %10s %10s %10s %10s %10s", 
+				"command", "count", "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+		for (int i = 0; i < COMMANDS.length; i++) {
+			Histogram histogram = latencies[i];
+			out.println(String.format(Locale.US, "%-10s %10d %10.1f %10.3f %10.3f %10.3f %10.3f", 
+					COMMANDS[i], histogram.getCount(), histogram.getCount() / seconds, 
+					histogram.getPercentile(50) / 1000.0, histogram.getPercentile(90) / 1000.0, 
+					histogram.getPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+		}
+	}
+	
+	public String toJson(long elapsed) {
+		StringBuilder result = new StringBuilder();
+		result.append("{\"clients\":").append(clients).append(",\"elapsedUs\":").append(elapsed / 1000);
+		result.append(",\"errors\":").append(errors.get()).append(",\"commands\":{");
+		for (int i = 0; i < COMMANDS.length; i++) {
+			if (i > 0)
+				result.append(",");
+			result.append('"').append(COMMANDS[i]).append("\":").append(latencies[i].toJson());
+		}
+		result.append("}}");
+		return result.toString();
+	}
+	
+	/**
+	 * One connection with its own session, sending a deterministic mix of
+	 * commands and waiting for each reply before sending the next.
+	 */
+	class Client {
+		private Socket socket = null;
+		private OutputStream out = null;
+		private InputStream in = null;
+		private Random random = null;
+		private long version = -1;
+		private int sequence = 0;
+		
+		public Client(int index) throws IOException {
+			this.random = new Random(index);
+			this.socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port));
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			this.in = new BufferedInputStream(socket.getInputStream());
+			
+			send("sessid load-" + runId + "-" + index, null);
+			if (!reply())
+				throw new IOException("Could not set session");
+		}
+		
+		public void run(long deadline) throws IOException {
+			while (System.nanoTime() < deadline) {
+				int command = pick();
+				long mark = System.nanoTime();
+				
+				if (COMMANDS[command].equals("execute")) {
+					send("execute", statement());
+				} else if (COMMANDS[command].equals("image")) {
+					send("image", "Plot[Sin[" + (1 + random.nextInt(20)) + " x], {x, 0, 2 Pi}]");
+				} else if (COMMANDS[command].equals("header")) {
+					send(version == -1 ? "header" : "header since " + version, null);
+				} else {
+					send("suggest " + PREFIXES[random.nextInt(PREFIXES.length)] + " 20", null);
+				}
+				
+				if (!reply())
+					errors.incrementAndGet();
+				latencies[command].record(Metrics.since(mark));
+			}
+		}
+		
+		private int pick() {
+			int total = 0;
+			for (int weight : WEIGHTS)
+				total += weight;
+			
+			int value = random.nextInt(total);
+			for (int i = 0; i < WEIGHTS.length; i++) {
+				value -= WEIGHTS[i];
+				if (value < 0)
+					return i;
+			}
+			return 0;
+		}
+		
+		private String statement() {
+			sequence++;
+			switch (random.nextInt(4)) {
+			case 0:
+				return "Range[" + (1 + random.nextInt(200)) + "]";
+			case 1:
+				return "x" + sequence + " = " + sequence + ";";
+			case 2:
+				return "Print[\"step " + sequence + "\"]";
+			default:
+				return "Expand[(a + b)^" + (1 + random.nextInt(10)) + "]";
+			}
+		}
+		
+		private void send(String line, String payload) throws IOException {
+			if (payload == null) {
+				out.write((line + "\n").getBytes(Session.UTF8));
+			} else {
+				byte[] data = payload.getBytes(Session.UTF8);
+				out.write((line + " " + data.length + "\n").getBytes(Session.UTF8));
+				out.write(data);
+			}
+			out.flush();
+		}
+		
+		/**
+		 * Reads up to the line that ends the reply, skipping inline output.
+		 * @return false if the server reported an error.
+		 */
+		private boolean reply() throws IOException {
+			while (true) {
+				String line = readLine();
+				
+				if (line.startsWith("inline ")) {
+					String[] parts = line.split(" ");
+					skip(Integer.parseInt(parts[1]));
+				} else if (line.startsWith("okay -- version ")) {
+					version = Long.parseLong(line.substring(16).trim());
+					return true;
+				} else if (line.startsWith("okay") || line.startsWith("suggestions ")) {
+					return true;
+				} else if (line.startsWith("exception") || line.startsWith("failed")) {
+					return false;
+				}
+			}
+		}
+		
+		private String readLine() throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c == -1)
+					throw new IOException("Server closed the connection");
+				line.write(c);
+			}
+			return new String(line.toByteArray(), Session.UTF8);
+		}
+		
+		private void skip(long count) throws IOException {
+			while (count > 0) {
+				long skipped = in.skip(count);
+				if (skipped <= 0) {
+					if (in.read() == -1)
+						throw new IOException("Server closed the connection");
+					skipped = 1;
+				}
+				count -= skipped;
+			}
+		}
+		
+		public void close() {
+			try {
+				send("quit", null);
+				socket.close();
+			} catch (IOException e) {
+				// Already gone
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.shadanan.textmatejlink;
+
+/**
+ * Resources.render() over a history of the given number of cells, either
+ * served from the render cache or rendered from scratch.
+ */
+public class RenderBenchmark extends Benchmark {
+	private int cells = 0;
+	private boolean cached = false;
+	private ResourcesFixture fixture = null;
+	
+	public RenderBenchmark(int cells, boolean cached) {
+		super(RenderBenchmark.class.getName() + (cached ? ".cached" : ".uncached"));
+		this.cells = cells;
+		this.cached = cached;
+		param("cells", cells);
+	}
+	
+	@Override
+	public void setUp() throws Exception {
+		fixture = new ResourcesFixture(cells);
+	}
+	
+	@Override
+	public Object run() throws Exception {
+		Resources resources = fixture.getResources();
+		if (!cached)
+			resources.clearRenderCache();
+		return resources.render();
+	}
+	
+	@Override
+	public void tearDown() {
+		fixture.close();
+	}
+}
@@ -0,0 +1,79 @@
+package com.shadanan.textmatejlink;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.wolfram.jlink.MathLink;
+import com.wolfram.jlink.MathLinkException;
+
+/**
+ * A Resources instance on a FakeKernel in a temporary cache folder. The
+ * history is seeded by writing a journal before the session is created, so
+ * the cells go through the same restore path as after a server restart.
+ */
+public class ResourcesFixture {
+	public static final String SESSION_ID = "bench";
+	
+	private File cacheFolder = null;
+	private KernelPool kernelPool = null;
+	private ImageStore imageStore = null;
+	private Resources resources = null;
+	
+	public ResourcesFixture(int cells) throws IOException, MathLinkException {
+		cacheFolder = File.createTempFile("tmjlink-bench", "");
+		cacheFolder.delete();
+		File sessionFolder = new File(cacheFolder, SESSION_ID);
+		sessionFolder.mkdirs();
+		
+		Journal journal = new Journal(new File(sessionFolder, "history.journal"), Long.MAX_VALUE);
+		journal.open();
+		for (int i = 1; i <= cells; i++)
+			journal.append(cell(i));
+		journal.close();
+		
+		kernelPool = new KernelPool(KernelPool.FAKE, new String[0], 0);
+		imageStore = new ImageStore(new File(cacheFolder, "images"), Long.MAX_VALUE, Long.MAX_VALUE);
+		resources = new Resources(SESSION_ID, cacheFolder.getPath(), kernelPool, loadSymbols(), imageStore, null);
+	}
+	
+	/**
+	 * A typical cell: the input, a message every tenth cell and a list that
+	 * needs escaping as the output.
+	 */
+	private static Journal.Cell cell(int count) {
+		Journal.Cell cell = new Journal.Cell(count);
+		cell.add(-1, "data" + count + " = Select[Range[" + count + "], # < 40 && PrimeQ[#] &]", false, -1);
+		
+		if (count % 10 == 0)
+			cell.add(MathLink.MESSAGEPKT, "Select::normal: Nonatomic expression expected at position 1.", false, -1);
+		
+		StringBuilder output = new StringBuilder("{");
+		for (int i = 0; i < 20; i++) {
+			if (i > 0)
+				output.append(", ");
+			output.append(count * 31 + i).append(" -> \"<").append(i).append(">\"");
+		}
+		output.append("}");
+		cell.add(MathLink.RETURNPKT, output.toString(), false, count % 1500);
+		
+		return cell;
+	}
+	
+	private static SymbolIndex loadSymbols() throws IOException {
+		String path = System.getProperty("tmjlink.symbols");
+		if (path == null || !new File(path).exists())
+			return SymbolIndex.EMPTY;
+		return SymbolIndex.load(new File(path));
+	}
+	
+	public Resources getResources() {
+		return resources;
+	}
+	
+	public void close() {
+		resources.close();
+		kernelPool.close();
+		imageStore.close();
+		Resources.delete(cacheFolder);
+	}
+}
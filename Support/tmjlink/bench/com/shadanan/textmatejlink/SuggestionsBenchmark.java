@@ -0,0 +1,35 @@
+package com.shadanan.textmatejlink;
+
+/**
+ * Resources.getSuggestions() and its JSON formatting, as answered to the
+ * suggest command. The fake kernel reports System` and Global` symbols on
+ * top of symbols.json, which is loaded when tmjlink.symbols is set.
+ */
+public class SuggestionsBenchmark extends Benchmark {
+	private String prefix = null;
+	private int limit = 0;
+	private ResourcesFixture fixture = null;
+	
+	public SuggestionsBenchmark(String prefix, int limit) {
+		super(SuggestionsBenchmark.class.getName() + ".getSuggestions");
+		this.prefix = prefix;
+		this.limit = limit;
+		param("prefix", prefix);
+		param("limit", limit);
+	}
+	
+	@Override
+	public void setUp() throws Exception {
+		fixture = new ResourcesFixture(0);
+	}
+	
+	@Override
+	public Object run() throws Exception {
+		return SymbolIndex.toJson(fixture.getResources().getSuggestions(prefix, limit));
+	}
+	
+	@Override
+	public void tearDown() {
+		fixture.close();
+	}
+}
@@ -0,0 +1,38 @@
+package com.shadanan.textmatejlink;
+
+/**
+ * Standard Base64 (RFC 4648) with padding. Java 6 has no public encoder;
+ * it is only needed for the WebSocket handshake.
+ */
+public class Base64 {
+	private static final char[] ALPHABET = 
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	
+	private Base64() {
+	}
+	
+	public static String encode(byte[] data) {
+		StringBuilder result = new StringBuilder((data.length + 2) / 3 * 4);
+		
+		int i = 0;
+		for (; i + 2 < data.length; i += 3) {
+			int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+			result.append(ALPHABET[bits >> 18 & 0x3f]);
+			result.append(ALPHABET[bits >> 12 & 0x3f]);
+			result.append(ALPHABET[bits >> 6 & 0x3f]);
+			result.append(ALPHABET[bits & 0x3f]);
+		}
+		
+		// One or two bytes left over are padded to a full group
+		int left = data.length - i;
+		if (left > 0) {
+			int bits = (data[i] & 0xff) << 16 | (left == 2 ? (data[i + 1] & 0xff) << 8 : 0);
+			result.append(ALPHABET[bits >> 18 & 0x3f]);
+			result.append(ALPHABET[bits >> 12 & 0x3f]);
+			result.append(left == 2 ? ALPHABET[bits >> 6 & 0x3f] : '=');
+			result.append('=');
+		}
+		
+		return result.toString();
+	}
+}
@@ -0,0 +1,98 @@
+package com.shadanan.textmatejlink;
+
+import java.util.ArrayList;
+
+/**
+ * Outcome of an execdoc batch: the time and status of every statement that
+ * was evaluated, sent to the client as a JSON summary once the batch ends.
+ */
+public class BatchResult {
+	public static final String OKAY = "okay";
+	public static final String MESSAGE = "message";
+	public static final String ABORTED = "aborted";
+	public static final String FAILED = "failed";
+	
+	private int total = 0;
+	private ArrayList<Long> times = null;
+	private ArrayList<String> statuses = null;
+	private boolean stopped = false;
+	private Exception error = null;
+	
+	public BatchResult(int total) {
+		this.total = total;
+		this.times = new ArrayList<Long>();
+		this.statuses = new ArrayList<String>();
+	}
+	
+	public void record(long time, String status) {
+		times.add(time);
+		statuses.add(status);
+	}
+	
+	public void stop() {
+		stopped = true;
+	}
+	
+	/**
+	 * Records a statement whose evaluation failed and ends the batch.
+	 */
+	public void fail(long time, Exception error) {
+		record(time, FAILED);
+		this.stopped = true;
+		this.error = error;
+	}
+	
+	public Exception getError() {
+		return error;
+	}
+	
+	public boolean isStopped() {
+		return stopped;
+	}
+	
+	public int getEvaluated() {
+		return times.size();
+	}
+	
+	public int getFailures() {
+		int failures = 0;
+		for (String status : statuses) {
+			if (!status.equals(OKAY))
+				failures++;
+		}
+		return failures;
+	}
+	
+	public long getTime() {
+		long time = 0;
+		for (long t : times)
+			time += t;
+		return time;
+	}
+	
+	public String toJson() {
+		StringBuilder result = new StringBuilder();
+		result.append("{\"total\":").append(total);
+		result.append(",\"evaluated\":").append(times.size());
+		result.append(",\"stopped\":").append(stopped);
+		result.append(",\"time\":").append(getTime());
+		result.append(",\"times\":[");
+		for (int i = 0; i < times.size(); i++) {
+			if (i > 0)
+				result.append(",");
+			result.append(times.get(i));
+		}
+		result.append("],\"failures\":[");
+		boolean first = true;
+		for (int i = 0; i < statuses.size(); i++) {
+			if (statuses.get(i).equals(OKAY))
+				continue;
+			if (!first)
+				result.append(",");
+			result.append("{\"index\":").append(i).append(",\"status\":\"").append(statuses.get(i)).append("\"}");
+			first = false;
+		}
+		result.append("]}");
+		return result.toString();
+	}
+}
@@ -0,0 +1,119 @@
+package com.shadanan.textmatejlink;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Remembers the statements of the last document run against a session's
+ * kernel, so that the next run only re-evaluates statements that changed,
+ * together with everything that reads or redefines a symbol they define.
+ */
+public class Document {
+	private Statement[] statements = null;
+	private Statement[] pending = null;
+	private HashSet<String> invalidated = null;
+	
+	public Document() {
+		this.statements = new Statement[0];
+		this.pending = new Statement[0];
+		this.invalidated = new HashSet<String>();
+	}
+	
+	/**
+	 * Takes the new text of the document and returns which statements have
+	 * to be evaluated. Until they are reported back with evaluated(), those
+	 * statements count as changed on the next run.
+	 */
+	public boolean[] update(List<String> sources) {
+		int count = sources.size();
+		Statement[] next = new Statement[count];
+		boolean[] stale = new boolean[count];
+		int[] matches = new int[count];
+		pending = new Statement[count];
+		
+		// Unchanged statements are matched in order, so inserting or removing
+		// a statement does not make everything after it look changed
+		HashMap<String, LinkedList<Integer>> previous = new HashMap<String, LinkedList<Integer>>();
+		for (int j = 0; j < statements.length; j++) {
+			if (statements[j] == null)
+				continue;
+			LinkedList<Integer> positions = previous.get(statements[j].getText());
+			if (positions == null) {
+				positions = new LinkedList<Integer>();
+				previous.put(statements[j].getText(), positions);
+			}
+			positions.add(j);
+		}
+		
+		boolean[] matched = new boolean[statements.length];
+		int last = -1;
+		for (int i = 0; i < count; i++) {
+			pending[i] = new Statement(sources.get(i));
+			matches[i] = -1;
+			
+			LinkedList<Integer> positions = previous.get(pending[i].getText());
+			while (positions != null && !positions.isEmpty() && positions.getFirst() <= last)
+				positions.removeFirst();
+			if (positions != null && !positions.isEmpty()) {
+				last = positions.removeFirst();
+				matches[i] = last;
+				matched[last] = true;
+			}
+		}
+		
+		// Symbols defined by removed statements or changed outside of a
+		// document run may hold anything now
+		HashSet<String> dirty = new HashSet<String>(invalidated);
+		invalidated.clear();
+		for (int j = 0; j < statements.length; j++) {
+			if (!matched[j] && statements[j] != null)
+				dirty.addAll(statements[j].getDefines());
+		}
+		
+		boolean evaluated = false;
+		for (int i = 0; i < count; i++) {
+			Statement statement = pending[i];
+			stale[i] = matches[i] == -1 || statement.dependsOn(dirty) || (evaluated && statement.readsHistory());
+			
+			if (stale[i]) {
+				dirty.addAll(statement.getDefines());
+				evaluated = true;
+			} else {
+				next[i] = statements[matches[i]];
+			}
+		}
+		
+		statements = next;
+		return stale;
+	}
+	
+	/**
+	 * Records that the statement at the given index of the last update was
+	 * evaluated successfully.
+	 */
+	public void evaluated(int index) {
+		statements[index] = pending[index];
+	}
+	
+	/**
+	 * Returns the analysis of the statement at the given index of the last
+	 * update.
+	 */
+	public Statement getStatement(int index) {
+		return pending[index];
+	}
+	
+	/**
+	 * Notes the definitions made by a statement evaluated outside of a
+	 * document run.
+	 */
+	public void invalidate(String source) {
+		invalidated.addAll(new Statement(source).getDefines());
+	}
+	
+	public int size() {
+		return statements.length;
+	}
+}
@@ -0,0 +1,108 @@
+package com.shadanan.textmatejlink;
+
+import com.wolfram.jlink.Expr;
+
+/**
+ * Answers questions about a stored result in the JVM, without a kernel
+ * round trip. A query is an operation followed by an optional part
+ * specification in Part[] notation without the brackets:
+ * 
+ *   length [<spec>]       Length of the result or of one of its parts
+ *   dimensions [<spec>]   Dimensions, as a list
+ *   head [<spec>]         Head
+ *   part <spec>           Text of a part, e.g. "part 3,2" or "part -1"
+ * 
+ * The last index of a spec may be a span, e.g. "part 2,10;;20", which
+ * selects a slice. Negative indices count from the end.
+ */
+public class ExprQuery {
+	private ExprQuery() {
+	}
+	
+	public static String answer(Expr expr, String operation, String spec) {
+		if (operation.equals("part") && spec == null)
+			throw new IllegalArgumentException("Missing part specification");
+		
+		String[] indices = spec == null ? new String[0] : spec.split(",");
+		Expr target = expr;
+		for (int i = 0; i < indices.length - 1; i++)
+			target = part(target, parseIndex(indices[i]));
+		
+		// A trailing span stays a range of the last expression reached
+		int from = 1;
+		int to = 0;
+		boolean span = false;
+		if (indices.length > 0) {
+			String last = indices[indices.length - 1].trim();
+			int separator = last.indexOf(";;");
+			if (separator == -1) {
+				target = part(target, parseIndex(last));
+			} else {
+				span = true;
+				from = separator == 0 ? 1 : resolve(target, parseIndex(last.substring(0, separator)));
+				to = separator + 2 == last.length() ? target.length() : resolve(target, parseIndex(last.substring(separator + 2)));
+			}
+		}
+		
+		if (operation.equals("length"))
+			return String.valueOf(span ? Math.max(to - from + 1, 0) : target.length());
+		if (span)
+			target = slice(target, from, to);
+		
+		if (operation.equals("dimensions"))
+			return toList(target.dimensions());
+		if (operation.equals("head"))
+			return target.head().toString();
+		if (operation.equals("part"))
+			return target.toString();
+		
+		throw new IllegalArgumentException("Invalid query: " + operation);
+	}
+	
+	private static int parseIndex(String index) {
+		try {
+			return Integer.parseInt(index.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid part index: " + index);
+		}
+	}
+	
+	/**
+	 * Turns a negative index into a positive one and checks it is in range.
+	 */
+	private static int resolve(Expr expr, int index) {
+		int length = expr.length();
+		int position = index < 0 ? length + 1 + index : index;
+		if (position < 1 || position > length)
+			throw new IllegalArgumentException("Part " + index + " of an expression of length " + length + " does not exist");
+		return position;
+	}
+	
+	private static Expr part(Expr expr, int index) {
+		// Part 0 is the head, as in Mathematica
+		if (index == 0)
+			return expr.head();
+		return expr.part(resolve(expr, index));
+	}
+	
+	/**
+	 * Builds a new expression with the same head from elements from..to;
+	 * the elements themselves are shared, not copied.
+	 */
+	private static Expr slice(Expr expr, int from, int to) {
+		Expr[] elements = new Expr[Math.max(to - from + 1, 0)];
+		for (int i = 0; i < elements.length; i++)
+			elements[i] = expr.part(from + i);
+		return new Expr(expr.head(), elements);
+	}
+	
+	private static String toList(int[] values) {
+		StringBuilder result = new StringBuilder("{");
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				result.append(", ");
+			result.append(values[i]);
+		}
+		return result.append("}").toString();
+	}
+}
@@ -0,0 +1,208 @@
+package com.shadanan.textmatejlink;
+
+import java.util.Random;
+
+import com.wolfram.jlink.Expr;
+import com.wolfram.jlink.MathLink;
+
+/**
+ * An in-process stand-in for MathKernel, used for load tests, benchmarks and
+ * development without Mathematica. Answers are deterministic:
+ * 
+ *   Print[x]        prints x as text
+ *   Message[x]      prints x as a message
+ *   Range[n]        returns the list 1..n
+ *   Pause[n]        waits n seconds and returns Null
+ *   Plot[..], Graphics[..], ...3D[..]  return a Graphics expression
+ *   $ContextPath, Names["ctx*"]        answer symbol completion queries
+ *   {Language`ExtendedFullDefinition[x], ..}  returns empty definitions
+ *   anything; (ending with a semicolon) returns Null
+ *   anything else   returns the input
+ * 
+ * The following system properties shape the load it produces:
+ * tmjlink.fake.latency (ms per evaluation), tmjlink.fake.text and
+ * tmjlink.fake.messages (text and message packets printed by every
+ * evaluation), tmjlink.fake.result (if set, non-Null results are replaced
+ * by a string of that many characters) and tmjlink.fake.image (bytes per
+ * rendered image). Capturing and sending definitions for parallel document
+ * runs is bookkeeping and answered without latency. Waits end early with
+ * $Aborted when the evaluation is aborted.
+ */
+public class FakeKernel implements Kernel {
+	public static final int SYSTEM_SYMBOLS = 5000;
+	public static final int GLOBAL_SYMBOLS = 500;
+	
+	// The smallest valid GIF, one transparent pixel; padding goes after the trailer
+	private static final byte[] GIF = { 
+		'G', 'I', 'F', '8', '9', 'a', 1, 0, 1, 0, (byte)0x80, 0, 0, 0, 0, 0, (byte)0xff, (byte)0xff, (byte)0xff, 
+		'!', (byte)0xf9, 4, 1, 0, 0, 0, 0, ',', 0, 0, 0, 0, 1, 0, 1, 0, 0, 2, 2, 'D', 1, 0, ';' };
+	
+	private long latency = 0;
+	private int textBurst = 0;
+	private int messageBurst = 0;
+	private int resultSize = 0;
+	private int imageSize = 0;
+	private volatile Listener listener = null;
+	private boolean busy = false;
+	private boolean aborted = false;
+	
+	public FakeKernel() {
+		this.latency = Long.getLong("tmjlink.fake.latency", 0);
+		this.textBurst = Integer.getInteger("tmjlink.fake.text", 0);
+		this.messageBurst = Integer.getInteger("tmjlink.fake.messages", 0);
+		this.resultSize = Integer.getInteger("tmjlink.fake.result", 0);
+		this.imageSize = Math.max(Integer.getInteger("tmjlink.fake.image", 4096), GIF.length);
+	}
+	
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	public Expr evaluate(String input) {
+		String query = input.trim();
+		
+		if (query.startsWith("{Language`ExtendedFullDefinition[")) {
+			Expr[] definitions = new Expr[query.split(",").length];
+			for (int i = 0; i < definitions.length; i++)
+				definitions[i] = new Expr(new Expr(Expr.SYMBOL, "Language`DefinitionList"), new Expr[0]);
+			return new Expr(new Expr(Expr.SYMBOL, "List"), definitions);
+		}
+		
+		for (int i = 1; i <= textBurst; i++)
+			print(MathLink.TEXTPKT, "Output " + i + " of " + textBurst);
+		for (int i = 1; i <= messageBurst; i++)
+			print(MathLink.MESSAGEPKT, "Fake::burst: Message " + i + " of " + messageBurst + ".");
+		
+		long pause = latency;
+		if (query.startsWith("Pause[")) {
+			try {
+				pause += (long)(Double.parseDouble(argument(query).trim()) * 1000);
+			} catch (NumberFormatException e) {
+				// Not a literal duration; no extra wait
+			}
+		}
+		if (!await(pause))
+			return Resources.ABORTED;
+		
+		if (query.startsWith("Pause["))
+			return Resources.NULLEXPR;
+		if (query.equals("$ContextPath"))
+			return list(new String[] { "System`", "Global`" });
+		if (query.startsWith("Names[\"System`"))
+			return list(names("Sym", SYSTEM_SYMBOLS));
+		if (query.startsWith("Names[\"Global`"))
+			return list(names("fake", GLOBAL_SYMBOLS));
+		
+		if (query.startsWith("Print[")) {
+			print(MathLink.TEXTPKT, argument(query));
+			return Resources.NULLEXPR;
+		}
+		if (query.startsWith("Message[")) {
+			print(MathLink.MESSAGEPKT, argument(query));
+			return Resources.NULLEXPR;
+		}
+		if (query.endsWith(";") || query.length() == 0)
+			return Resources.NULLEXPR;
+		
+		if (query.startsWith("Range[")) {
+			try {
+				int n = Math.max(Integer.parseInt(argument(query).trim()), 0);
+				Expr[] values = new Expr[n];
+				for (int i = 0; i < n; i++)
+					values[i] = new Expr((long)(i + 1));
+				return new Expr(new Expr(Expr.SYMBOL, "List"), values);
+			} catch (NumberFormatException e) {
+				// Not a literal count; echoed below
+			}
+		}
+		
+		String head = query.indexOf('[') == -1 ? "" : query.substring(0, query.indexOf('['));
+		if (head.equals("Plot") || head.equals("Graphics") || head.endsWith("3D") || head.endsWith("Plot"))
+			return new Expr(new Expr(Expr.SYMBOL, "Graphics"), new Expr[] { new Expr(query) });
+		
+		if (resultSize > 0)
+			return new Expr(filler(query, resultSize));
+		return new Expr(Expr.SYMBOL, query);
+	}
+	
+	public Expr evaluate(Expr input) {
+		return Resources.NULLEXPR;
+	}
+	
+	public byte[] evaluateToImage(Expr expr) {
+		byte[] data = new byte[imageSize];
+		System.arraycopy(GIF, 0, data, 0, GIF.length);
+		
+		// Distinct expressions give distinct images, so the image store
+		// deduplicates exactly what a real kernel would produce
+		byte[] padding = new byte[imageSize - GIF.length];
+		new Random(expr.toString().hashCode()).nextBytes(padding);
+		System.arraycopy(padding, 0, data, GIF.length, padding.length);
+		return data;
+	}
+	
+	public synchronized void abort() {
+		if (busy) {
+			aborted = true;
+			notifyAll();
+		}
+	}
+	
+	public void close() {
+		listener = null;
+	}
+	
+	/**
+	 * Waits for the given time, returning false if aborted meanwhile.
+	 */
+	private synchronized boolean await(long millis) {
+		long deadline = System.currentTimeMillis() + millis;
+		busy = true;
+		aborted = false;
+		try {
+			long remaining = millis;
+			while (remaining > 0 && !aborted) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			busy = false;
+		}
+		return !aborted;
+	}
+	
+	private void print(int type, String text) {
+		Listener current = listener;
+		if (current != null)
+			current.packetArrived(type, text);
+	}
+	
+	private static String argument(String query) {
+		int end = query.lastIndexOf(']');
+		return query.substring(query.indexOf('[') + 1, end == -1 ? query.length() : end);
+	}
+	
+	private static String filler(String seed, int size) {
+		StringBuilder result = new StringBuilder(size);
+		while (result.length() < size)
+			result.append(seed).append(" ");
+		result.setLength(size);
+		return result.toString();
+	}
+	
+	private static String[] names(String prefix, int count) {
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++)
+			names[i] = prefix + i;
+		return names;
+	}
+	
+	private static Expr list(String[] values) {
+		Expr[] args = new Expr[values.length];
+		for (int i = 0; i < values.length; i++)
+			args[i] = new Expr(values[i]);
+		return new Expr(new Expr(Expr.SYMBOL, "List"), args);
+	}
+}
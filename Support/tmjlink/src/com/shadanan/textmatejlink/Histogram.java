@@ -0,0 +1,95 @@
+package com.shadanan.textmatejlink;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values in log-linear buckets, in the
+ * style of HdrHistogram: every power of two is split into 16 linear
+ * sub-buckets, so reported percentiles are within about 6% of the recorded
+ * values. Recording is a few atomic increments and never allocates.
+ */
+public class Histogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		
+		buckets.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+	
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int)value;
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+	}
+	
+	static long lowerBound(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		int mantissa = index % SUB_BUCKETS;
+		return (long)(SUB_BUCKETS + mantissa) << (exponent - SUB_BITS);
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+	
+	/**
+	 * Returns the highest value equivalent to the given percentile.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		
+		if (total == 0)
+			return 0;
+		
+		long target = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(upper, max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	public String toJson() {
+		return "{\"count\":" + getCount() + ",\"mean\":" + getMean() + ",\"p50\":" + getPercentile(50) +
+				",\"p90\":" + getPercentile(90) + ",\"p99\":" + getPercentile(99) + ",\"max\":" + getMax() + "}";
+	}
+}
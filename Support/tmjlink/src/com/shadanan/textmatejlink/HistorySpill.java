@@ -0,0 +1,125 @@
+package com.shadanan.textmatejlink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only file holding the rendered HTML of cell groups that were
+ * evicted from a session's in-memory history. Only a small index of
+ * offsets stays on the heap; groups are read back when they are rendered.
+ */
+public class HistorySpill {
+	private File file = null;
+	private RandomAccessFile raf = null;
+	private FileChannel channel = null;
+	private ArrayList<Group> groups = null;
+	private int resourceCount = 0;
+	private long size = 0;
+	
+	public HistorySpill(File file) {
+		this.file = file;
+		this.groups = new ArrayList<Group>();
+	}
+	
+	public void append(int count, String html, List<String> images, int resources) throws IOException {
+		if (channel == null) {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+		}
+		
+		byte[] data = html.getBytes(Session.UTF8);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining())
+			channel.write(buffer, size + buffer.position());
+		
+		groups.add(new Group(count, size, data.length, images.toArray(new String[images.size()]), resources));
+		resourceCount += resources;
+		size += data.length;
+	}
+	
+	public String read(Group group) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(group.length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, group.offset + buffer.position()) == -1)
+				throw new IOException("Spill file truncated: " + file);
+		}
+		return new String(buffer.array(), 0, group.length, Session.UTF8);
+	}
+	
+	public List<Group> getGroups() {
+		return groups;
+	}
+	
+	public int getResourceCount() {
+		return resourceCount;
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Drops every spilled group, releasing their images, and deletes the file.
+	 */
+	public void release(ImageStore imageStore, String sessionId) {
+		for (Group group : groups) {
+			for (String image : group.images)
+				imageStore.release(sessionId, image);
+		}
+		
+		groups.clear();
+		resourceCount = 0;
+		size = 0;
+		delete();
+	}
+	
+	/**
+	 * Deletes the file without releasing images, which the journal still
+	 * refers to.
+	 */
+	public void delete() {
+		close();
+		if (file.exists()) file.delete();
+	}
+	
+	public void close() {
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				Log.error(e);
+			}
+			raf = null;
+			channel = null;
+		}
+	}
+	
+	static class Group {
+		private int count;
+		private long offset;
+		private int length;
+		private String[] images;
+		private int resources;
+		
+		public Group(int count, long offset, int length, String[] images, int resources) {
+			this.count = count;
+			this.offset = offset;
+			this.length = length;
+			this.images = images;
+			this.resources = resources;
+		}
+		
+		public int getCount() {
+			return count;
+		}
+		
+		public String[] getImages() {
+			return images;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.shadanan.textmatejlink;
+
+import java.io.IOException;
+
+/**
+ * Escapes text for the output window in a single pass. Replacements come
+ * from a lookup table indexed by character and runs of characters that need
+ * no escaping are appended to the sink in one call. Optionally removes the
+ * line continuations Mathematica inserts into long OutputForm lines
+ * ("\\\n \n>  ") in the same pass.
+ */
+public class HtmlEscaper {
+	private static final char EURO = '\u20ac';
+	private static final String[] ENTITIES = new String[256];
+	
+	static {
+		ENTITIES['<'] = "&lt;";
+		ENTITIES['>'] = "&gt;";
+		ENTITIES['&'] = "&amp;";
+		ENTITIES['"'] = "&quot;";
+		ENTITIES['\u00e0'] = "&agrave;";
+		ENTITIES['\u00c0'] = "&Agrave;";
+		ENTITIES['\u00e2'] = "&acirc;";
+		ENTITIES['\u00c2'] = "&Acirc;";
+		ENTITIES['\u00e4'] = "&auml;";
+		ENTITIES['\u00c4'] = "&Auml;";
+		ENTITIES['\u00e5'] = "&aring;";
+		ENTITIES['\u00c5'] = "&Aring;";
+		ENTITIES['\u00e6'] = "&aelig;";
+		ENTITIES['\u00c6'] = "&AElig;";
+		ENTITIES['\u00e7'] = "&ccedil;";
+		ENTITIES['\u00c7'] = "&Ccedil;";
+		ENTITIES['\u00e9'] = "&eacute;";
+		ENTITIES['\u00c9'] = "&Eacute;";
+		ENTITIES['\u00e8'] = "&egrave;";
+		ENTITIES['\u00c8'] = "&Egrave;";
+		ENTITIES['\u00ea'] = "&ecirc;";
+		ENTITIES['\u00ca'] = "&Ecirc;";
+		ENTITIES['\u00eb'] = "&euml;";
+		ENTITIES['\u00cb'] = "&Euml;";
+		ENTITIES['\u00ef'] = "&iuml;";
+		ENTITIES['\u00cf'] = "&Iuml;";
+		ENTITIES['\u00f4'] = "&ocirc;";
+		ENTITIES['\u00d4'] = "&Ocirc;";
+		ENTITIES['\u00f6'] = "&ouml;";
+		ENTITIES['\u00d6'] = "&Ouml;";
+		ENTITIES['\u00f8'] = "&oslash;";
+		ENTITIES['\u00d8'] = "&Oslash;";
+		ENTITIES['\u00df'] = "&szlig;";
+		ENTITIES['\u00f9'] = "&ugrave;";
+		ENTITIES['\u00d9'] = "&Ugrave;";
+		ENTITIES['\u00fb'] = "&ucirc;";
+		ENTITIES['\u00db'] = "&Ucirc;";
+		ENTITIES['\u00fc'] = "&uuml;";
+		ENTITIES['\u00dc'] = "&Uuml;";
+		ENTITIES['\u00ae'] = "&reg;";
+		ENTITIES['\u00a9'] = "&copy;";
+	}
+	
+	private HtmlEscaper() {
+	}
+	
+	public static String escape(CharSequence text, boolean autoTrim) {
+		StringBuilder sb = new StringBuilder(text.length() + 16);
+		escape(text, autoTrim, sb);
+		return sb.toString();
+	}
+	
+	public static void escape(CharSequence text, boolean autoTrim, StringBuilder sb) {
+		try {
+			escape(text, autoTrim, (Appendable)sb);
+		} catch (IOException e) {
+			// StringBuilder never throws
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public static void escape(CharSequence text, boolean autoTrim, Appendable out) throws IOException {
+		int length = text.length();
+		int run = 0;
+		
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			String entity = null;
+			
+			if (c < 256) {
+				entity = ENTITIES[c];
+			} else if (c == EURO) {
+				entity = "&euro;";
+			}
+			
+			if (entity == null && !(autoTrim && c == '\\' && isContinuation(text, i)))
+				continue;
+			
+			if (run < i)
+				out.append(text, run, i);
+			
+			if (entity != null) {
+				out.append(entity);
+				run = i + 1;
+			} else {
+				i += 6;
+				run = i + 1;
+			}
+		}
+		
+		if (run < length)
+			out.append(text, run, length);
+	}
+	
+	/**
+	 * Matches the continuation pattern \\\n\s\n>\s\s at the given position.
+	 */
+	private static boolean isContinuation(CharSequence text, int i) {
+		if (i + 6 >= text.length())
+			return false;
+		
+		return text.charAt(i + 1) == '\n' &&
+				isWhitespace(text.charAt(i + 2)) &&
+				text.charAt(i + 3) == '\n' &&
+				text.charAt(i + 4) == '>' &&
+				isWhitespace(text.charAt(i + 5)) &&
+				isWhitespace(text.charAt(i + 6));
+	}
+	
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+	}
+	
+	private static String reference(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+	
+	/**
+	 * Runs the escaper against a corpus of known inputs and prints any
+	 * mismatches. Usage: java com.shadanan.textmatejlink.HtmlEscaper
+	 */
+	public static void main(String args[]) {
+		String continued = "\"user_count_tablestats\" -> {\"chart\" -> \"user_count_tablestats.gif\", \"colors\"\\\n" +
+				" \n" +
+				">   -> {\"e63221\", \"5b0e04\", \"b04e00\", \"fac742\", \"a1a13f\", \"527b28\", \"4e977d\",\\\n" +
+				" \n" +
+				">   \"316f74\", \"549bbe\", \"104283\"}, \"labels\" -> {\"user base size\", \"verified\\\n" +
+				" \n" +
+				">   email\", \"trial users\"}}";
+		
+		String[][] corpus = {
+			{ "", "", "" },
+			{ "x + y", "x + y", "x + y" },
+			{ "a < b && c > d", "a &lt; b &amp;&amp; c &gt; d", "a &lt; b &amp;&amp; c &gt; d" },
+			{ "\"quoted\"", "&quot;quoted&quot;", "&quot;quoted&quot;" },
+			{ "<<>>", "&lt;&lt;&gt;&gt;", "&lt;&lt;&gt;&gt;" },
+			{ "caf\u00e9 \u00c0 la cr\u00e8me", "caf&eacute; &Agrave; la cr&egrave;me", "caf&eacute; &Agrave; la cr&egrave;me" },
+			{ "\u00df\u00f8\u00e6\u00c6\u00e5", "&szlig;&oslash;&aelig;&AElig;&aring;", "&szlig;&oslash;&aelig;&AElig;&aring;" },
+			{ "\u00a9 \u00ae \u20ac5", "&copy; &reg; &euro;5", "&copy; &reg; &euro;5" },
+			{ "\u03b1 + \u221e", "\u03b1 + \u221e", "\u03b1 + \u221e" },
+			{ "a\\\n \n>  b", "a\\\n \n&gt;  b", "ab" },
+			{ "a\\\n\t\n>\t\tb<", "a\\\n\t\n&gt;\t\tb&lt;", "ab&lt;" },
+			{ "a\\\n \n> b", "a\\\n \n&gt; b", "a\\\n \n&gt; b" },
+			{ "a\\\n \n>  ", "a\\\n \n&gt;  ", "a" },
+			{ "a\\\n \n> ", "a\\\n \n&gt; ", "a\\\n \n&gt; " },
+			{ "\\\\\n \n>  x", "\\\\\n \n&gt;  x", "\\x" },
+			{ continued, reference(continued), reference(continued.replaceAll("\\\\\\n\\s\\n>\\s\\s", "")) },
+		};
+		
+		int failures = 0;
+		for (String[] test : corpus) {
+			for (int trim = 0; trim < 2; trim++) {
+				String actual = escape(test[0], trim == 1);
+				if (!actual.equals(test[1 + trim])) {
+					failures++;
+					System.out.println("FAIL (autoTrim=" + (trim == 1) + "): " + test[0]);
+					System.out.println("  expected: " + test[1 + trim]);
+					System.out.println("  actual:   " + actual);
+				}
+			}
+		}
+		
+		System.out.println((corpus.length * 2 - failures) + " passed, " + failures + " failed");
+		if (failures > 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,798 @@
+package com.shadanan.textmatejlink;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A single HTTP connection of the HttpServer. Requests are handled one at a
+ * time on the selector thread; a response is a queue of header and body
+ * buffers, optionally followed by a region of a file that is transferred
+ * straight from the page cache to the socket as the socket accepts it.
+ * 
+ * A request for /sessions/<id>/live upgrades the connection to a WebSocket
+ * subscribed to the LiveFeed of the session. From then on the connection
+ * only sends the frames pushed by the feed and answers pings and closes.
+ * If more than tmjlink.live.backlog bytes are waiting for a slow viewer,
+ * the queued frames are dropped and the viewer is told to resync instead.
+ */
+public class HttpConnection {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int MAX_HEADER_SIZE = 16 * 1024;
+	private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final long MAX_BACKLOG = Long.getLong("tmjlink.live.backlog", 1024 * 1024);
+	
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xa;
+	private static final int CLOSE_PROTOCOL_ERROR = 1002;
+	private static final int CLOSE_TOO_BIG = 1009;
+	private static final int CLOSE_TRY_AGAIN_LATER = 1013;
+	
+	private HttpServer server = null;
+	private SocketChannel channel = null;
+	private SelectionKey key = null;
+	private ByteBuffer in = null;
+	private LinkedList<ByteBuffer> out = null;
+	private FileChannel file = null;
+	private long filePosition = 0;
+	private long fileEnd = 0;
+	private long queued = 0;
+	private LiveFeed feed = null;
+	private boolean busy = false;
+	private boolean keepAlive = true;
+	private boolean closed = false;
+	
+	public HttpConnection(HttpServer server, SocketChannel channel) {
+		this.server = server;
+		this.channel = channel;
+		this.in = ByteBuffer.allocate(MAX_HEADER_SIZE);
+		this.out = new LinkedList<ByteBuffer>();
+	}
+	
+	public void register(Selector selector) throws ClosedChannelException {
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+	
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		
+		closeFile();
+		if (feed != null)
+			feed.unsubscribe(this);
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Log.error(e);
+		}
+		server.deleteConnection(this);
+	}
+	
+	public void handleRead() {
+		try {
+			if (channel.read(in) == -1) {
+				close();
+				return;
+			}
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		
+		if (feed != null)
+			readFrames();
+		else
+			next();
+	}
+	
+	/**
+	 * Starts on the next buffered request once the previous response is out.
+	 */
+	private void next() {
+		if (closed || busy || file != null || !out.isEmpty())
+			return;
+		
+		int end = -1;
+		for (int i = 3; i < in.position(); i++) {
+			if (in.get(i - 3) == '\r' && in.get(i - 2) == '\n' && in.get(i - 1) == '\r' && in.get(i) == '\n') {
+				end = i + 1;
+				break;
+			}
+		}
+		
+		if (end == -1) {
+			if (in.position() == in.capacity()) {
+				keepAlive = false;
+				respond(431, "Request Header Fields Too Large", null);
+				flush();
+			}
+			return;
+		}
+		
+		String header = new String(in.array(), 0, end, ASCII);
+		in.flip();
+		in.position(end);
+		in.compact();
+		
+		Request request = Request.parse(header);
+		if (request == null) {
+			keepAlive = false;
+			respond(400, "Bad Request", null);
+			flush();
+			return;
+		}
+		
+		keepAlive = request.isKeepAlive();
+		Metrics.count("http.requests");
+		dispatch(request);
+		if (!busy)
+			flush();
+	}
+	
+	private void dispatch(Request request) {
+		if (!request.method.equals("GET") && !request.method.equals("HEAD")) {
+			keepAlive = false;
+			respond(405, "Method Not Allowed", null);
+			return;
+		}
+		
+		String path = request.path;
+		if (path.startsWith("/sessions/") && path.endsWith("/live") && path.length() > 15) {
+			upgrade(request, path.substring(10, path.length() - 5));
+			return;
+		}
+		
+		if (path.startsWith("/images/")) {
+			serveImage(request, path.substring(8));
+			return;
+		}
+		
+		if (path.startsWith("/web/")) {
+			File asset = server.getAsset(path.substring(5));
+			if (asset == null) {
+				respond(404, "Not Found", null);
+				return;
+			}
+			
+			try {
+				serveFile(request, asset, contentType(asset.getName()), server.getAssetTag(asset), "no-cache");
+			} catch (IOException e) {
+				Log.warn("Failed to serve " + asset + ": " + e.getMessage());
+				respond(404, "Not Found", null);
+			}
+			return;
+		}
+		
+		if (path.startsWith("/sessions/") && path.length() > 10) {
+			serveSession(request, path.substring(10));
+			return;
+		}
+		
+		respond(404, "Not Found", null);
+	}
+	
+	/**
+	 * Images are content addressed, so their name is a strong ETag and they
+	 * never change. An image that is still being written behind is sent
+	 * from memory.
+	 */
+	private void serveImage(Request request, String filename) {
+		ImageStore imageStore = server.getImageStore();
+		if (!filename.endsWith(".gif") || filename.indexOf('/') != -1 || filename.startsWith(".")) {
+			respond(404, "Not Found", null);
+			return;
+		}
+		
+		String tag = "\"" + filename.substring(0, filename.length() - 4) + "\"";
+		File file = imageStore.getFile(filename);
+		if (file.isFile()) {
+			try {
+				serveFile(request, file, "image/gif", tag, IMMUTABLE);
+				return;
+			} catch (IOException e) {
+				// Evicted meanwhile
+			}
+		}
+		
+		byte[] data = imageStore.getPending(filename);
+		if (data == null) {
+			respond(404, "Not Found", null);
+			return;
+		}
+		
+		HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put("Content-Type", "image/gif");
+		headers.put("ETag", tag);
+		headers.put("Cache-Control", IMMUTABLE);
+		if (tag.equals(request.get("if-none-match"))) {
+			respond(304, "Not Modified", headers);
+			return;
+		}
+		
+		headers.put("Content-Length", String.valueOf(data.length));
+		respond(200, "OK", headers);
+		if (!request.method.equals("HEAD"))
+			queue(ByteBuffer.wrap(data));
+	}
+	
+	private void serveFile(Request request, File path, String contentType, String tag, String cacheControl)
+			throws IOException {
+		FileChannel source = new FileInputStream(path).getChannel();
+		long length = source.size();
+		
+		HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put("Content-Type", contentType);
+		headers.put("ETag", tag);
+		headers.put("Cache-Control", cacheControl);
+		headers.put("Accept-Ranges", "bytes");
+		
+		if (tag.equals(request.get("if-none-match"))) {
+			source.close();
+			respond(304, "Not Modified", headers);
+			return;
+		}
+		
+		// A range only applies to the representation the client already has
+		long start = 0;
+		long end = length;
+		String range = request.get("range");
+		String ifRange = request.get("if-range");
+		if (range != null && (ifRange == null || ifRange.equals(tag))) {
+			long[] bounds = parseRange(range, length);
+			if (bounds != null && bounds[0] == -1) {
+				source.close();
+				headers.put("Content-Range", "bytes */" + length);
+				headers.put("Content-Length", "0");
+				respond(416, "Range Not Satisfiable", headers);
+				return;
+			}
+			if (bounds != null) {
+				start = bounds[0];
+				end = bounds[1] + 1;
+				headers.put("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+			}
+		}
+		
+		headers.put("Content-Length", String.valueOf(end - start));
+		if (headers.containsKey("Content-Range"))
+			respond(206, "Partial Content", headers);
+		else
+			respond(200, "OK", headers);
+		
+		if (request.method.equals("HEAD") || start == end) {
+			source.close();
+			return;
+		}
+		
+		file = source;
+		filePosition = start;
+		fileEnd = end;
+	}
+	
+	/**
+	 * Parses a single byte range against a file of the given length. Returns
+	 * the first and last byte, {-1, -1} if the range can't be satisfied, or
+	 * null if the header is ignored, as lists of ranges are.
+	 */
+	static long[] parseRange(String header, long length) {
+		if (!header.startsWith("bytes=") || header.indexOf(',') != -1)
+			return null;
+		
+		String spec = header.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1)
+			return null;
+		
+		try {
+			long first;
+			long last;
+			if (dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix == 0)
+					return new long[] { -1, -1 };
+				first = Math.max(length - suffix, 0);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(spec.substring(0, dash));
+				last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+				if (last < first)
+					return null;
+				last = Math.min(last, length - 1);
+			}
+			
+			if (first >= length)
+				return new long[] { -1, -1 };
+			return new long[] { first, last };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Renders the whole history of a session as a page. The session's lock
+	 * may be held by a running evaluation, so this happens on a worker.
+	 */
+	private void serveSession(final Request request, final String sessionId) {
+		final Server owner = server.getServer();
+		final Resources resources = owner.findResources(sessionId);
+		if (resources == null) {
+			respond(404, "Not Found", null);
+			return;
+		}
+		
+		busy = true;
+		boolean submitted = owner.submit(new Runnable() {
+			public void run() {
+				String content = null;
+				try {
+					synchronized (owner.lockFor(sessionId)) {
+						content = page(sessionId, resources.render(), resources.getVersion());
+					}
+				} catch (IOException e) {
+					Log.error(e);
+				}
+				
+				final String page = content;
+				server.post(new Runnable() {
+					public void run() {
+						busy = false;
+						sendPage(request, page);
+						flush();
+					}
+				});
+			}
+		});
+		
+		if (!submitted) {
+			busy = false;
+			respond(503, "Service Unavailable", null);
+		}
+	}
+	
+	/**
+	 * Completes the WebSocket handshake of RFC 6455 and subscribes to the
+	 * session's feed. Only pages served from this server may subscribe, or
+	 * clients that send no Origin at all. A subscriber whose page was
+	 * rendered at an older version has missed output and resyncs at once.
+	 */
+	private void upgrade(Request request, String sessionId) {
+		String key = request.get("sec-websocket-key");
+		String upgrade = request.get("upgrade");
+		String connection = request.get("connection");
+		if (!request.method.equals("GET") || key == null || upgrade == null || !upgrade.equalsIgnoreCase("websocket") 
+				|| connection == null || connection.toLowerCase(Locale.US).indexOf("upgrade") == -1) {
+			keepAlive = false;
+			respond(400, "Bad Request", null);
+			return;
+		}
+		
+		if (!"13".equals(request.get("sec-websocket-version"))) {
+			HashMap<String, String> headers = new HashMap<String, String>();
+			headers.put("Sec-WebSocket-Version", "13");
+			keepAlive = false;
+			respond(426, "Upgrade Required", headers);
+			return;
+		}
+		
+		String origin = request.get("origin");
+		if (origin != null && !origin.equals("http://" + request.get("host"))) {
+			keepAlive = false;
+			respond(403, "Forbidden", null);
+			return;
+		}
+		
+		Resources resources = server.getServer().findResources(sessionId);
+		if (resources == null) {
+			keepAlive = false;
+			respond(404, "Not Found", null);
+			return;
+		}
+		
+		HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put("Upgrade", "websocket");
+		headers.put("Connection", "Upgrade");
+		headers.put("Sec-WebSocket-Accept", accept(key));
+		respond(101, "Switching Protocols", headers);
+		
+		keepAlive = true;
+		feed = server.feedFor(sessionId);
+		feed.subscribe(this);
+		
+		String version = request.getParameter("v");
+		if (version != null && !version.equals(String.valueOf(resources.getVersion())))
+			resync();
+	}
+	
+	private static String accept(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return Base64.encode(digest.digest((key.trim() + WEBSOCKET_GUID).getBytes(ASCII)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Queues a frame of the live feed. Called on the selector thread.
+	 */
+	void push(ByteBuffer frame) {
+		if (closed || !keepAlive)
+			return;
+		
+		if (queued + frame.remaining() > MAX_BACKLOG) {
+			Metrics.count("live.drops");
+			Log.debug("Live viewer of " + feed.getSessionId() + " fell behind by " + queued + " bytes");
+			
+			// A frame that is partly written has to be finished first
+			ByteBuffer head = out.isEmpty() ? null : out.getFirst();
+			out.clear();
+			queued = 0;
+			if (head != null && head.position() > 0)
+				queue(head);
+			resync();
+			return;
+		}
+		
+		queue(frame);
+		flush();
+	}
+	
+	/**
+	 * Tells the viewer to reload the page and closes the connection.
+	 */
+	private void resync() {
+		feed.unsubscribe(this);
+		queue(textFrame(LiveFeed.RESYNC));
+		queue(closeFrame(CLOSE_TRY_AGAIN_LATER));
+		keepAlive = false;
+		flush();
+	}
+	
+	/**
+	 * Handles the frames sent by the viewer. Text is ignored, pings are
+	 * answered and a close is echoed before the connection is closed.
+	 */
+	private void readFrames() {
+		while (!closed && keepAlive && in.position() >= 2) {
+			int first = in.get(0) & 0xff;
+			int second = in.get(1) & 0xff;
+			int opcode = first & 0x0f;
+			long length = second & 0x7f;
+			int offset = 2;
+			
+			if (length == 126) {
+				if (in.position() < 4)
+					return;
+				length = (in.get(2) & 0xff) << 8 | (in.get(3) & 0xff);
+				offset = 4;
+			} else if (length == 127) {
+				if (in.position() < 10)
+					return;
+				length = in.getLong(2);
+				offset = 10;
+			}
+			
+			// Clients must mask their frames
+			if ((second & 0x80) == 0) {
+				fail(CLOSE_PROTOCOL_ERROR);
+				return;
+			}
+			if (length < 0 || length > in.capacity() - offset - 4) {
+				fail(CLOSE_TOO_BIG);
+				return;
+			}
+			
+			int end = offset + 4 + (int)length;
+			if (in.position() < end)
+				return;
+			
+			byte[] payload = new byte[(int)length];
+			for (int i = 0; i < payload.length; i++)
+				payload[i] = (byte)(in.get(offset + 4 + i) ^ in.get(offset + (i & 3)));
+			
+			in.flip();
+			in.position(end);
+			in.compact();
+			
+			if (opcode == OPCODE_CLOSE) {
+				feed.unsubscribe(this);
+				queue(frame(OPCODE_CLOSE, payload.length >= 2 ? new byte[] { payload[0], payload[1] } : new byte[0]));
+				keepAlive = false;
+				flush();
+			} else if (opcode == OPCODE_PING) {
+				queue(frame(OPCODE_PONG, payload));
+				flush();
+			}
+		}
+	}
+	
+	private void fail(int status) {
+		feed.unsubscribe(this);
+		queue(closeFrame(status));
+		keepAlive = false;
+		flush();
+	}
+	
+	static ByteBuffer textFrame(String text) {
+		return frame(OPCODE_TEXT, text.getBytes(Session.UTF8));
+	}
+	
+	private static ByteBuffer closeFrame(int status) {
+		return frame(OPCODE_CLOSE, new byte[] { (byte)(status >> 8), (byte)status });
+	}
+	
+	/**
+	 * Builds a single unmasked, final frame, as servers send them.
+	 */
+	private static ByteBuffer frame(int opcode, byte[] payload) {
+		int header = payload.length < 126 ? 2 : payload.length < 65536 ? 4 : 10;
+		ByteBuffer frame = ByteBuffer.allocate(header + payload.length);
+		frame.put((byte)(0x80 | opcode));
+		if (header == 2) {
+			frame.put((byte)payload.length);
+		} else if (header == 4) {
+			frame.put((byte)126);
+			frame.putShort((short)payload.length);
+		} else {
+			frame.put((byte)127);
+			frame.putLong(payload.length);
+		}
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+	
+	private void sendPage(Request request, String page) {
+		if (page == null) {
+			respond(500, "Internal Server Error", null);
+			return;
+		}
+		
+		byte[] body = page.getBytes(Session.UTF8);
+		HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put("Content-Type", "text/html; charset=utf-8");
+		headers.put("Cache-Control", "no-store");
+		headers.put("Content-Length", String.valueOf(body.length));
+		respond(200, "OK", headers);
+		if (!request.method.equals("HEAD"))
+			queue(ByteBuffer.wrap(body));
+	}
+	
+	/**
+	 * Follows the live feed. The cell group being evaluated is kept in #live
+	 * until its closing part arrives and it moves to #content.
+	 */
+	private static final String LIVE_SCRIPT = 
+			"$(function() {" +
+			"  if (!window.WebSocket) return;" +
+			"  var open = '';" +
+			"  var socket = new WebSocket('ws://' + location.host + location.pathname + '/live?v=' + version);" +
+			"  socket.onmessage = function(event) {" +
+			"    var newline = event.data.indexOf('\\n');" +
+			"    var type = newline == -1 ? event.data : event.data.substring(0, newline);" +
+			"    if (type == 'resync') { location.reload(); return; }" +
+			"    open += event.data.substring(newline + 1);" +
+			"    if (type == 'cell' && open.indexOf('cellgroup') == -1) { location.reload(); return; }" +
+			"    if (type == 'cell') { $('#content').append(open); open = ''; }" +
+			"    $('#live').html(open);" +
+			"  };" +
+			"});";
+	
+	private static String page(String sessionId, String content, long version) {
+		StringBuilder result = new StringBuilder();
+		result.append("<!DOCTYPE html>\n<html><head><meta charset='utf-8' />");
+		result.append("<title>").append(HtmlEscaper.escape(sessionId, false)).append("</title>");
+		result.append("<script type='text/javascript' src='/web/jquery-1.4.2.min.js'></script>");
+		result.append("<link rel='stylesheet' href='/web/tmjlink.css' type='text/css' />");
+		result.append("<script type='text/javascript'>");
+		result.append("function toggle(resource_id) { $('#resource_' + resource_id + ' .return').toggle(); }");
+		result.append("var version = ").append(version).append(";");
+		result.append(LIVE_SCRIPT);
+		result.append("</script></head><body>");
+		result.append("<div id='content'>").append(content).append("</div>");
+		result.append("<div id='live'></div>");
+		result.append("</body></html>\n");
+		return result.toString();
+	}
+	
+	/**
+	 * Queues the status line and headers of a response. Error responses
+	 * get an empty body. Nothing is written until flush().
+	 */
+	private void respond(int status, String reason, HashMap<String, String> headers) {
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+		head.append("Date: ").append(httpDate(System.currentTimeMillis())).append("\r\n");
+		head.append("Server: tmjlink\r\n");
+		
+		if (headers != null) {
+			for (String name : headers.keySet())
+				head.append(name).append(": ").append(headers.get(name)).append("\r\n");
+		}
+		if (headers == null || (!headers.containsKey("Content-Length") && status != 304 && status != 101))
+			head.append("Content-Length: 0\r\n");
+		if (!keepAlive)
+			head.append("Connection: close\r\n");
+		head.append("\r\n");
+		
+		Metrics.count("http.status." + status);
+		queue(ByteBuffer.wrap(head.toString().getBytes(ASCII)));
+	}
+	
+	private void queue(ByteBuffer buffer) {
+		out.add(buffer);
+		queued += buffer.remaining();
+	}
+	
+	/**
+	 * Writes as much of the response as the socket takes right now, and
+	 * moves on to the next request once it is complete.
+	 */
+	private void flush() {
+		try {
+			while (!out.isEmpty()) {
+				ByteBuffer buffer = out.getFirst();
+				queued -= channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					interest(SelectionKey.OP_WRITE);
+					return;
+				}
+				out.removeFirst();
+			}
+			
+			while (file != null && filePosition < fileEnd) {
+				long sent = file.transferTo(filePosition, fileEnd - filePosition, channel);
+				if (sent == 0) {
+					interest(SelectionKey.OP_WRITE);
+					return;
+				}
+				filePosition += sent;
+				Metrics.record("http.transfer.bytes", sent);
+			}
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		
+		closeFile();
+		interest(SelectionKey.OP_READ);
+		if (!keepAlive) {
+			close();
+			return;
+		}
+		
+		// Requests pipelined behind this one are already buffered
+		if (feed == null && in.position() > 0)
+			next();
+	}
+	
+	public void handleWrite() {
+		flush();
+	}
+	
+	private void interest(int ops) {
+		if (!closed && key.isValid())
+			key.interestOps(ops);
+	}
+	
+	private void closeFile() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				Log.error(e);
+			}
+			file = null;
+		}
+	}
+	
+	private static String contentType(String name) {
+		if (name.endsWith(".css"))
+			return "text/css; charset=utf-8";
+		if (name.endsWith(".js"))
+			return "application/javascript; charset=utf-8";
+		if (name.endsWith(".gif"))
+			return "image/gif";
+		if (name.endsWith(".png"))
+			return "image/png";
+		if (name.endsWith(".html"))
+			return "text/html; charset=utf-8";
+		return "application/octet-stream";
+	}
+	
+	private static String httpDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+	
+	static class Request {
+		private String method;
+		private String path;
+		private String query;
+		private String version;
+		private HashMap<String, String> headers;
+		
+		/**
+		 * Parses a request line and headers, or returns null if they are
+		 * malformed. Header names are kept in lower case.
+		 */
+		public static Request parse(String text) {
+			String[] lines = text.split("\r\n");
+			String[] words = lines[0].split(" ");
+			if (words.length != 3 || !words[2].startsWith("HTTP/1."))
+				return null;
+			
+			Request request = new Request();
+			request.method = words[0];
+			request.version = words[2];
+			request.headers = new HashMap<String, String>();
+			
+			try {
+				URI uri = new URI(words[1]);
+				request.path = uri.getPath();
+				request.query = uri.getRawQuery();
+			} catch (URISyntaxException e) {
+				return null;
+			}
+			if (request.path == null)
+				return null;
+			
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon == -1)
+					continue;
+				request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+						lines[i].substring(colon + 1).trim());
+			}
+			return request;
+		}
+		
+		public String get(String name) {
+			return headers.get(name);
+		}
+		
+		/**
+		 * Returns the value of a query parameter, or null if it is missing.
+		 */
+		public String getParameter(String name) {
+			if (query == null)
+				return null;
+			for (String pair : query.split("&")) {
+				if (pair.startsWith(name + "="))
+					return pair.substring(name.length() + 1);
+			}
+			return null;
+		}
+		
+		public boolean isKeepAlive() {
+			String connection = get("connection");
+			if (version.equals("HTTP/1.0"))
+				return connection != null && connection.equalsIgnoreCase("keep-alive");
+			return connection == null || !connection.equalsIgnoreCase("close");
+		}
+	}
+}
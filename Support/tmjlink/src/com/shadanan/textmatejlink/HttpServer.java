@@ -0,0 +1,241 @@
+package com.shadanan.textmatejlink;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A small HTTP/1.1 server for viewing sessions outside of TextMate. It
+ * serves the images of the image store under /images/, the assets of
+ * Support/web (tmjlink.web) under /web/ and the history of a session under
+ * /sessions/<id>; the page follows the session's output as it is produced
+ * over a WebSocket on /sessions/<id>/live (see LiveFeed). Files are sent
+ * with FileChannel.transferTo, which the OS turns into sendfile, and carry
+ * ETags derived from their content hash so that viewers revalidate or
+ * cache them; single byte ranges are supported.
+ * 
+ * Like Server, it runs one selector thread. Only rendering a session page,
+ * which takes the session's lock, is handed to the server's worker pool.
+ * 
+ * tmjlink.http.port picks the port (0, the default, for any free one, -1
+ * to disable the server) and tmjlink.http.address the interface, which is
+ * the loopback interface unless the history should be visible to others.
+ */
+public class HttpServer extends Thread {
+	private static final long SELECT_INTERVAL = 1000;
+	
+	private Server server = null;
+	private ImageStore imageStore = null;
+	private File webFolder = null;
+	private String address = null;
+	private int requestedPort = 0;
+	private volatile int port = 0;
+	private volatile boolean running = false;
+	
+	private Selector selector = null;
+	private ServerSocketChannel ssc = null;
+	private Set<HttpConnection> connections = null;
+	private ConcurrentLinkedQueue<Runnable> tasks = null;
+	private HashMap<String, String> assetTags = null;
+	private ConcurrentHashMap<String, LiveFeed> feeds = null;
+	
+	public HttpServer(Server server, ImageStore imageStore, File webFolder, String address, int port) {
+		super("tmjlink-http");
+		setDaemon(true);
+		this.server = server;
+		this.imageStore = imageStore;
+		this.webFolder = webFolder;
+		this.address = address;
+		this.requestedPort = port;
+		this.connections = Collections.newSetFromMap(new ConcurrentHashMap<HttpConnection, Boolean>());
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.assetTags = new HashMap<String, String>();
+		this.feeds = new ConcurrentHashMap<String, LiveFeed>();
+	}
+	
+	/**
+	 * Binds the listening socket, so that URLs can be handed out before the
+	 * selector thread starts.
+	 */
+	public void bind() throws IOException {
+		selector = Selector.open();
+		ssc = ServerSocketChannel.open();
+		ssc.socket().bind(new InetSocketAddress(InetAddress.getByName(address), requestedPort));
+		ssc.configureBlocking(false);
+		ssc.register(selector, SelectionKey.OP_ACCEPT);
+		port = ssc.socket().getLocalPort();
+		running = true;
+		Log.info("HTTP server started on: " + getUrl());
+	}
+	
+	/**
+	 * The base URL of the server, without a trailing slash.
+	 */
+	public String getUrl() {
+		String host = address.indexOf(':') == -1 ? address : "[" + address + "]";
+		return "http://" + host + ":" + port;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select(SELECT_INTERVAL);
+				
+				// Run what worker threads handed back to the selector thread
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					
+					if (!key.isValid())
+						continue;
+					
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					
+					HttpConnection connection = (HttpConnection)key.attachment();
+					if (key.isWritable())
+						connection.handleWrite();
+					if (key.isValid() && key.isReadable())
+						connection.handleRead();
+				}
+			}
+		} catch (IOException e) {
+			Log.error(e);
+		}
+		
+		for (HttpConnection connection : new ArrayList<HttpConnection>(connections))
+			connection.close();
+		
+		try {
+			ssc.close();
+			selector.close();
+		} catch (IOException e) {
+			Log.error(e);
+		}
+		Log.info("HTTP server shut down.");
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = ssc.accept();
+		if (channel == null)
+			return;
+		
+		channel.configureBlocking(false);
+		HttpConnection connection = new HttpConnection(this, channel);
+		connection.register(selector);
+		connections.add(connection);
+	}
+	
+	public void shutdown() {
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+	}
+	
+	/**
+	 * Runs a task on the selector thread, which owns all connection state.
+	 */
+	public void post(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * The live feed of a session. Feeds outlive the Resources of a session,
+	 * so that viewers stay subscribed when its kernel is restarted.
+	 */
+	public LiveFeed feedFor(String sessionId) {
+		LiveFeed feed = feeds.get(sessionId);
+		if (feed == null) {
+			LiveFeed created = new LiveFeed(this, sessionId);
+			feed = feeds.putIfAbsent(sessionId, created);
+			if (feed == null)
+				feed = created;
+		}
+		return feed;
+	}
+	
+	void deleteConnection(HttpConnection connection) {
+		connections.remove(connection);
+	}
+	
+	Server getServer() {
+		return server;
+	}
+	
+	ImageStore getImageStore() {
+		return imageStore;
+	}
+	
+	/**
+	 * Resolves a file name under /web/, or returns null if there is no such
+	 * asset. Only plain files directly inside the web folder are served.
+	 */
+	File getAsset(String name) {
+		if (webFolder == null || name.length() == 0 || name.indexOf('/') != -1 || name.startsWith("."))
+			return null;
+		
+		File file = new File(webFolder, name);
+		return file.isFile() ? file : null;
+	}
+	
+	/**
+	 * The ETag of an asset, the SHA-1 of its content. Tags are computed once
+	 * per modification of the file.
+	 */
+	String getAssetTag(File file) throws IOException {
+		String key = file.getName() + "@" + file.lastModified() + "/" + file.length();
+		String tag = assetTags.get(key);
+		if (tag != null)
+			return tag;
+		
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					digest.update(buffer, 0, read);
+			} finally {
+				in.close();
+			}
+			
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			tag = "\"" + hex + "\"";
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		
+		assetTags.put(key, tag);
+		return tag;
+	}
+}
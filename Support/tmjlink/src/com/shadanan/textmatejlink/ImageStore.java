@@ -0,0 +1,377 @@
+package com.shadanan.textmatejlink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content addressed store for rendered graphics shared by all sessions.
+ * Images are named after the SHA-1 of their bytes, so re-evaluating the
+ * same plot reuses the existing file. Files are written behind by a
+ * background thread, and the least recently rendered images are evicted
+ * when a session or the whole store goes over its byte quota. Files
+ * survive a server restart so that journaled sessions can refer to them.
+ */
+public class ImageStore {
+	private File folder = null;
+	private long quota = 0;
+	private long sessionQuota = 0;
+	private LinkedHashMap<String, Entry> entries = null;
+	private HashMap<String, Long> sessionBytes = null;
+	private ExecutorService writer = null;
+	private volatile String baseUrl = null;
+	
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	
+	public ImageStore(File folder, long quota, long sessionQuota) {
+		this.folder = folder;
+		this.quota = quota;
+		this.sessionQuota = sessionQuota;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.sessionBytes = new HashMap<String, Long>();
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "tmjlink-image-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		folder.mkdirs();
+		load();
+	}
+	
+	/**
+	 * Indexes the images left behind by an earlier server process so that
+	 * restored sessions can adopt them. Until then they belong to no session
+	 * and are the first to go when the store is over quota.
+	 */
+	private void load() {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		
+		for (File file : files) {
+			if (!file.getName().endsWith(".gif")) {
+				file.delete();
+				continue;
+			}
+			
+			Entry entry = new Entry(hashOf(file.getName()), (int)file.length());
+			entries.put(entry.hash, entry);
+			bytes += entry.size;
+		}
+	}
+	
+	/**
+	 * Stores image bytes on behalf of a session and returns the file name
+	 * they are (or will shortly be) available under.
+	 */
+	public String put(String sessionId, byte[] data) {
+		return put(sessionId, hash(data), data);
+	}
+	
+	private synchronized String put(String sessionId, String hash, byte[] data) {
+		Entry entry = entries.get(hash);
+		
+		if (entry != null) {
+			hits++;
+		} else {
+			misses++;
+			entry = new Entry(hash, data);
+			entries.put(hash, entry);
+			bytes += entry.size;
+			write(entry);
+		}
+		
+		Integer references = entry.sessions.get(sessionId);
+		if (references == null) {
+			entry.sessions.put(sessionId, 1);
+			addSessionBytes(sessionId, entry.size);
+		} else {
+			entry.sessions.put(sessionId, references + 1);
+		}
+		
+		enforceQuotas(sessionId, hash);
+		return entry.getFilename();
+	}
+	
+	/**
+	 * Takes a reference to an image that is already stored, as recorded in a
+	 * session journal. Returns false if the image is gone.
+	 */
+	public synchronized boolean adopt(String sessionId, String filename) {
+		Entry entry = entries.get(hashOf(filename));
+		if (entry == null)
+			return false;
+		
+		Integer references = entry.sessions.get(sessionId);
+		if (references == null) {
+			entry.sessions.put(sessionId, 1);
+			addSessionBytes(sessionId, entry.size);
+		} else {
+			entry.sessions.put(sessionId, references + 1);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Marks an image as rendered, making it the last to be evicted.
+	 */
+	public synchronized void touch(String filename) {
+		entries.get(hashOf(filename));
+	}
+	
+	/**
+	 * Drops a session's reference to an image, deleting the file once no
+	 * session refers to it anymore.
+	 */
+	public synchronized void release(String sessionId, String filename) {
+		Entry entry = entries.get(hashOf(filename));
+		if (entry == null)
+			return;
+		
+		Integer references = entry.sessions.get(sessionId);
+		if (references == null)
+			return;
+		
+		if (references > 1) {
+			entry.sessions.put(sessionId, references - 1);
+			return;
+		}
+		
+		entry.sessions.remove(sessionId);
+		addSessionBytes(sessionId, -entry.size);
+		if (entry.sessions.isEmpty())
+			remove(entry);
+	}
+	
+	public File getFile(String filename) {
+		return new File(folder, filename);
+	}
+	
+	/**
+	 * Returns the bytes of an image that is still waiting to be written, or
+	 * null if it is on disk or unknown.
+	 */
+	public synchronized byte[] getPending(String filename) {
+		Entry entry = entries.get(hashOf(filename));
+		return entry == null ? null : entry.pending;
+	}
+	
+	/**
+	 * Where viewers load an image from: the HTTP server if there is one,
+	 * the file otherwise.
+	 */
+	public String getUrl(String filename) {
+		String base = baseUrl;
+		return base == null ? "file://" + getFile(filename) : base + "/images/" + filename;
+	}
+	
+	public void setBaseUrl(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+	
+	/**
+	 * Evicts least recently used images until the session and the store are
+	 * back within their quotas, sparing the image that was just stored.
+	 */
+	private void enforceQuotas(String sessionId, String keep) {
+		if (getSessionBytes(sessionId) > sessionQuota) {
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext() && getSessionBytes(sessionId) > sessionQuota) {
+				Entry entry = iterator.next();
+				if (!entry.hash.equals(keep) && entry.sessions.remove(sessionId) != null) {
+					addSessionBytes(sessionId, -entry.size);
+					evictions++;
+					if (entry.sessions.isEmpty()) {
+						iterator.remove();
+						discard(entry);
+					}
+				}
+			}
+		}
+		
+		if (bytes > quota) {
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext() && bytes > quota) {
+				Entry entry = iterator.next();
+				if (!entry.hash.equals(keep)) {
+					for (String owner : entry.sessions.keySet())
+						addSessionBytes(owner, -entry.size);
+					entry.sessions.clear();
+					evictions++;
+					iterator.remove();
+					discard(entry);
+				}
+			}
+		}
+	}
+	
+	private void remove(Entry entry) {
+		entries.remove(entry.hash);
+		discard(entry);
+	}
+	
+	private void discard(Entry entry) {
+		bytes -= entry.size;
+		entry.removed = true;
+		if (entry.written)
+			getFile(entry.getFilename()).delete();
+	}
+	
+	private void write(final Entry entry) {
+		writer.execute(new Runnable() {
+			public void run() {
+				byte[] data;
+				synchronized (ImageStore.this) {
+					if (entry.removed)
+						return;
+					data = entry.pending;
+				}
+				
+				File file = getFile(entry.getFilename());
+				File temp = new File(folder, entry.hash + ".tmp");
+				try {
+					FileOutputStream fp = new FileOutputStream(temp);
+					try {
+						fp.write(data);
+					} finally {
+						fp.close();
+					}
+					temp.renameTo(file);
+				} catch (IOException e) {
+					Log.warn("Failed to write image " + file + ": " + e.getMessage());
+					temp.delete();
+				}
+				
+				synchronized (ImageStore.this) {
+					entry.pending = null;
+					entry.written = true;
+					if (entry.removed)
+						file.delete();
+				}
+			}
+		});
+	}
+	
+	private long getSessionBytes(String sessionId) {
+		Long size = sessionBytes.get(sessionId);
+		return size == null ? 0 : size;
+	}
+	
+	private void addSessionBytes(String sessionId, long delta) {
+		long size = getSessionBytes(sessionId) + delta;
+		if (size <= 0)
+			sessionBytes.remove(sessionId);
+		else
+			sessionBytes.put(sessionId, size);
+	}
+	
+	private static String hashOf(String filename) {
+		int dot = filename.lastIndexOf('.');
+		return dot == -1 ? filename : filename.substring(0, dot);
+	}
+	
+	private static String hash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public void close() {
+		writer.shutdown();
+		
+		// Images must be on disk for the journals that refer to them
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	public synchronized void printStatus() {
+		long lookups = hits + misses;
+		Log.info("Image Store: " + entries.size() + " images, " + bytes + " bytes, " +
+				hits + " hits, " + misses + " misses" +
+				(lookups > 0 ? " (" + (hits * 100 / lookups) + "% hit rate)" : "") + ", " +
+				evictions + " evictions");
+	}
+	
+	static class Entry {
+		private String hash;
+		private int size;
+		private byte[] pending;
+		private boolean written;
+		private boolean removed;
+		private HashMap<String, Integer> sessions;
+		
+		public Entry(String hash, byte[] data) {
+			this.hash = hash;
+			this.size = data.length;
+			this.pending = data;
+			this.written = false;
+			this.removed = false;
+			this.sessions = new HashMap<String, Integer>();
+		}
+		
+		public Entry(String hash, int size) {
+			this.hash = hash;
+			this.size = size;
+			this.pending = null;
+			this.written = true;
+			this.removed = false;
+			this.sessions = new HashMap<String, Integer>();
+		}
+		
+		public String getFilename() {
+			return hash + ".gif";
+		}
+	}
+}
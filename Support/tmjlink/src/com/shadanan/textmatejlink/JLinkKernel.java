@@ -0,0 +1,140 @@
+package com.shadanan.textmatejlink;
+
+import java.lang.reflect.Field;
+
+import com.wolfram.jlink.Expr;
+import com.wolfram.jlink.KernelLink;
+import com.wolfram.jlink.MathLink;
+import com.wolfram.jlink.MathLinkException;
+import com.wolfram.jlink.MathLinkFactory;
+import com.wolfram.jlink.PacketArrivedEvent;
+import com.wolfram.jlink.PacketListener;
+
+/**
+ * A MathKernel launched through JLink.
+ */
+public class JLinkKernel implements Kernel, PacketListener {
+	// Built once; looking the name up by reflection on every packet is slow
+	private static final String[] PACKET_NAMES = packetNames();
+	
+	private KernelLink kernelLink = null;
+	private volatile Listener listener = null;
+	private final Object abortLock = new Object();
+	private boolean busy = false;
+	
+	public JLinkKernel(String[] mlargs) throws MathLinkException {
+		this.kernelLink = MathLinkFactory.createKernelLink(mlargs);
+		kernelLink.discardAnswer();
+		kernelLink.addPacketListener(this);
+	}
+	
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	public Expr evaluate(String input) throws MathLinkException {
+		begin();
+		try {
+			kernelLink.evaluate(input);
+			kernelLink.waitForAnswer();
+			Expr result = kernelLink.getExpr();
+			kernelLink.newPacket();
+			return result;
+		} finally {
+			end();
+		}
+	}
+	
+	public Expr evaluate(Expr input) throws MathLinkException {
+		begin();
+		try {
+			kernelLink.evaluate(input);
+			kernelLink.waitForAnswer();
+			Expr result = kernelLink.getExpr();
+			kernelLink.newPacket();
+			return result;
+		} finally {
+			end();
+		}
+	}
+	
+	public byte[] evaluateToImage(Expr expr) {
+		begin();
+		try {
+			return kernelLink.evaluateToImage(expr, 0, 0);
+		} finally {
+			end();
+		}
+	}
+	
+	private void begin() {
+		synchronized (abortLock) {
+			busy = true;
+		}
+	}
+	
+	private void end() {
+		synchronized (abortLock) {
+			busy = false;
+		}
+	}
+	
+	/**
+	 * An abort message reaching an idle kernel would abort whatever it
+	 * evaluates next, so it is only sent while an evaluation is running.
+	 * The check and the send hold the same lock as the end of an
+	 * evaluation, which therefore can't finish in between.
+	 */
+	public void abort() {
+		synchronized (abortLock) {
+			if (busy)
+				kernelLink.abortEvaluation();
+		}
+	}
+	
+	public void close() {
+		kernelLink.removePacketListener(this);
+		kernelLink.close();
+	}
+	
+	@Override
+  public boolean packetArrived(PacketArrivedEvent evt) throws MathLinkException {
+		KernelLink ml = (KernelLink)evt.getSource();
+		Listener current = listener;
+		
+		if (current != null && (evt.getPktType() == MathLink.TEXTPKT || evt.getPktType() == MathLink.MESSAGEPKT))
+			current.packetArrived(evt.getPktType(), ml.getString());
+		
+		if (Log.isDebugEnabled())
+			Log.debug("Received Mathematica Packet: " + packetName(evt.getPktType()) + " (" + evt.getPktType() + ")");
+		
+		return true;
+	}
+	
+	public static String packetName(int type) {
+		String name = type >= 0 && type < PACKET_NAMES.length ? PACKET_NAMES[type] : null;
+		return name == null ? "UNKNOWNPKT" : name;
+	}
+	
+	/**
+	 * Maps packet types to the names of their MathLink constants. The first
+	 * name wins where constants share a value, as FIRSTUSERPKT does.
+	 */
+	private static String[] packetNames() {
+		// Packet types are single bytes, up to LASTUSERPKT
+		String[] names = new String[256];
+		for (Field field : MathLink.class.getFields()) {
+			if (!field.getName().endsWith("PKT") || field.getType() != int.class)
+				continue;
+			
+			try {
+				int type = field.getInt(null);
+				if (type >= 0 && type < names.length && names[type] == null)
+					names[type] = field.getName();
+			} catch (IllegalAccessException e) {
+				Log.warn(e.getMessage());
+			}
+		}
+		return names;
+	}
+}
@@ -0,0 +1,288 @@
+package com.shadanan.textmatejlink;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the evaluated cells of a session, so that a restarted
+ * server can restore the output history without re-evaluating anything.
+ * Every record is framed by its length and a CRC32 of its payload; a torn
+ * or corrupt tail left by a killed process is cut off when the journal is
+ * opened. Clearing the history appends a marker, and the records before
+ * the last marker are compacted away once they outweigh the live ones.
+ */
+public class Journal {
+	private static final byte CELL = 1;
+	private static final byte CLEAR = 2;
+	
+	private File file = null;
+	private long compactThreshold = 0;
+	private RandomAccessFile raf = null;
+	private FileChannel channel = null;
+	private long size = 0;
+	private long liveStart = 0;
+	
+	public Journal(File file, long compactThreshold) {
+		this.file = file;
+		this.compactThreshold = compactThreshold;
+	}
+	
+	/**
+	 * Reads the journal in one sequential pass and returns the cells recorded
+	 * since the last clear, then opens it for appending.
+	 */
+	public List<Cell> open() throws IOException {
+		ArrayList<Cell> cells = new ArrayList<Cell>();
+		long valid = 0;
+		
+		if (file.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+			try {
+				CRC32 crc = new CRC32();
+				while (true) {
+					int length;
+					try {
+						length = in.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					
+					if (length <= 0 || length > file.length() - valid)
+						break;
+					
+					int checksum;
+					byte[] payload = new byte[length];
+					try {
+						checksum = in.readInt();
+						in.readFully(payload);
+					} catch (EOFException e) {
+						break;
+					}
+					
+					crc.reset();
+					crc.update(payload);
+					if ((int)crc.getValue() != checksum)
+						break;
+					
+					if (payload[0] == CLEAR) {
+						cells.clear();
+						liveStart = valid + 8 + length;
+					} else if (payload[0] == CELL) {
+						try {
+							cells.add(Cell.decode(payload));
+						} catch (RuntimeException e) {
+							break;
+						}
+					}
+					valid += 8 + length;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		if (channel.size() > valid) {
+			Log.warn("Truncating journal " + file + " after " + valid + " bytes");
+			channel.truncate(valid);
+		}
+		size = valid;
+		
+		if (liveStart > 0)
+			compact();
+		return cells;
+	}
+	
+	public void append(Cell cell) throws IOException {
+		append(cell.encode());
+	}
+	
+	/**
+	 * Marks every cell written so far as dead.
+	 */
+	public void clear() throws IOException {
+		append(new byte[] { CLEAR });
+		liveStart = size;
+		
+		if (liveStart >= compactThreshold)
+			compact();
+	}
+	
+	private void append(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		
+		ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt((int)crc.getValue());
+		buffer.put(payload);
+		buffer.flip();
+		
+		while (buffer.hasRemaining())
+			channel.write(buffer, size + buffer.position());
+		size += buffer.limit();
+	}
+	
+	/**
+	 * Rewrites the journal with only the records after the last clear.
+	 */
+	private void compact() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel target = out.getChannel();
+			long position = liveStart;
+			while (position < size)
+				position += channel.transferTo(position, size - position, target);
+			target.force(true);
+		} finally {
+			out.close();
+		}
+		
+		close();
+		if (!temp.renameTo(file))
+			throw new IOException("Failed to replace journal " + file);
+		
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		size -= liveStart;
+		liveStart = 0;
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	public void close() {
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				Log.error(e);
+			}
+			raf = null;
+			channel = null;
+		}
+	}
+	
+	public void delete() {
+		close();
+		if (file.exists()) file.delete();
+	}
+	
+	/**
+	 * One evaluated cell group: the input and every packet it produced.
+	 */
+	static class Cell {
+		private int count;
+		private ArrayList<Entry> entries;
+		private boolean shortened;
+		
+		public Cell(int count) {
+			this.count = count;
+			this.entries = new ArrayList<Entry>();
+		}
+		
+		public void add(int type, String value, boolean subdue, long time) {
+			entries.add(new Entry(type, value, subdue, time));
+		}
+		
+		public int getCount() {
+			return count;
+		}
+		
+		public List<Entry> getEntries() {
+			return entries;
+		}
+		
+		/**
+		 * Whether a result of the cell was shortened. Not journaled; restored
+		 * cells learn it from the full text in the session folder.
+		 */
+		public boolean isShortened() {
+			return shortened;
+		}
+		
+		public void setShortened(boolean shortened) {
+			this.shortened = shortened;
+		}
+		
+		private byte[] encode() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(CELL);
+			out.writeInt(count);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				byte[] value = entry.value.getBytes(Session.UTF8);
+				out.writeInt(entry.type);
+				out.writeBoolean(entry.subdue);
+				out.writeLong(entry.time);
+				out.writeInt(value.length);
+				out.write(value);
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}
+		
+		private static Cell decode(byte[] payload) {
+			ByteBuffer in = ByteBuffer.wrap(payload, 1, payload.length - 1);
+			Cell cell = new Cell(in.getInt());
+			int entries = in.getInt();
+			for (int i = 0; i < entries; i++) {
+				int type = in.getInt();
+				boolean subdue = in.get() != 0;
+				long time = in.getLong();
+				int length = in.getInt();
+				String value = new String(payload, in.position(), length, Session.UTF8);
+				in.position(in.position() + length);
+				cell.add(type, value, subdue, time);
+			}
+			return cell;
+		}
+	}
+	
+	static class Entry {
+		private int type;
+		private String value;
+		private boolean subdue;
+		private long time;
+		
+		public Entry(int type, String value, boolean subdue, long time) {
+			this.type = type;
+			this.value = value;
+			this.subdue = subdue;
+			this.time = time;
+		}
+		
+		public int getType() {
+			return type;
+		}
+		
+		public String getValue() {
+			return value;
+		}
+		
+		public boolean isSubdued() {
+			return subdue;
+		}
+		
+		public long getTime() {
+			return time;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.shadanan.textmatejlink;
+
+import com.wolfram.jlink.Expr;
+import com.wolfram.jlink.MathLinkException;
+
+/**
+ * The kernel a session evaluates in. JLinkKernel talks to a MathKernel over
+ * JLink, FakeKernel answers in-process so that the server can be exercised
+ * without a Mathematica installation. KernelPool picks the backend.
+ */
+public interface Kernel {
+	/**
+	 * Receives the text (MathLink.TEXTPKT) and message (MathLink.MESSAGEPKT)
+	 * packets printed while an evaluation runs, on the evaluating thread.
+	 */
+	interface Listener {
+		void packetArrived(int type, String text);
+	}
+	
+	void setListener(Listener listener);
+	
+	/**
+	 * Evaluates the input and returns its result, Resources.NULLEXPR if
+	 * there is none.
+	 */
+	Expr evaluate(String input) throws MathLinkException;
+	
+	/**
+	 * Evaluates an expression built in the JVM, such as the definitions
+	 * sent to a helper kernel.
+	 */
+	Expr evaluate(Expr input) throws MathLinkException;
+	
+	/**
+	 * Renders an expression as a GIF, or returns null if it can't be shown
+	 * as an image.
+	 */
+	byte[] evaluateToImage(Expr expr) throws MathLinkException;
+	
+	/**
+	 * Asks the running evaluation, if any, to stop; it then returns $Aborted
+	 * and the kernel stays usable. May be called from any thread.
+	 */
+	void abort();
+	
+	void close();
+}
@@ -0,0 +1,261 @@
+package com.shadanan.textmatejlink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wolfram.jlink.Expr;
+import com.wolfram.jlink.MathLinkException;
+
+/**
+ * Helper kernels that evaluate the independent statements of a parallel
+ * document run next to the session's own kernel. Definitions are only ever
+ * made in the session's kernel; before a helper evaluates a statement it is
+ * sent the definitions of the user symbols the statement reads, as captured
+ * there by Language`ExtendedFullDefinition at the time the statement was
+ * submitted.
+ */
+public class KernelGroup {
+	private static final Expr DEFINITIONS = new Expr(new Expr(Expr.SYMBOL, "Language`ExtendedFullDefinition"), new Expr[0]);
+	private static final AtomicInteger THREADS = new AtomicInteger();
+	
+	private KernelPool kernelPool = null;
+	private LinkedBlockingQueue<Helper> idle = null;
+	private Set<Kernel> members = null;
+	private AtomicInteger live = null;
+	private AtomicLong aborts = null;
+	private ExecutorService executor = null;
+	private volatile boolean closed = false;
+	
+	/**
+	 * What a statement printed and returned, held back until it is the
+	 * statement's turn to be added to the history.
+	 */
+	public static class Output implements Kernel.Listener {
+		private ArrayList<Integer> types = new ArrayList<Integer>();
+		private ArrayList<String> texts = new ArrayList<String>();
+		private Expr result = null;
+		private byte[] image = null;
+		private long time = 0;
+		
+		public void packetArrived(int type, String text) {
+			types.add(type);
+			texts.add(text);
+		}
+		
+		public int getPacketCount() {
+			return types.size();
+		}
+		
+		public int getPacketType(int index) {
+			return types.get(index);
+		}
+		
+		public String getPacketText(int index) {
+			return texts.get(index);
+		}
+		
+		public Expr getResult() {
+			return result;
+		}
+		
+		public byte[] getImage() {
+			return image;
+		}
+		
+		public long getTime() {
+			return time;
+		}
+	}
+	
+	private static class Helper {
+		private Kernel kernel = null;
+		private HashMap<String, Long> synced = new HashMap<String, Long>();
+		
+		private Helper(Kernel kernel) {
+			this.kernel = kernel;
+		}
+	}
+	
+	/**
+	 * Checks out the given number of helper kernels. Fewer are used if the
+	 * pool fails to launch them, for example for lack of kernel licenses.
+	 */
+	public KernelGroup(KernelPool kernelPool, int helpers) {
+		this.kernelPool = kernelPool;
+		this.idle = new LinkedBlockingQueue<Helper>();
+		this.members = Collections.newSetFromMap(new ConcurrentHashMap<Kernel, Boolean>());
+		this.live = new AtomicInteger();
+		this.aborts = new AtomicLong();
+		
+		for (int i = 0; i < helpers; i++) {
+			try {
+				add(kernelPool.checkout());
+				live.incrementAndGet();
+			} catch (MathLinkException e) {
+				Log.warn("Failed to launch helper kernel " + (i + 1) + " of " + helpers + ": " + e.getMessage());
+				break;
+			}
+		}
+		
+		this.executor = Executors.newFixedThreadPool(Math.max(live.get(), 1), new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "tmjlink-group-" + THREADS.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	public int size() {
+		return live.get();
+	}
+	
+	/**
+	 * Evaluates a statement in the calling thread, collecting its output
+	 * instead of passing it on to the kernel's listener. The listener is
+	 * restored afterwards.
+	 */
+	public static Output evaluate(Kernel kernel, String query, Kernel.Listener listener) throws MathLinkException {
+		Output output = new Output();
+		long mark = System.currentTimeMillis();
+		
+		kernel.setListener(output);
+		try {
+			long evaluateMark = System.nanoTime();
+			output.result = kernel.evaluate(query);
+			Metrics.record(Metrics.KERNEL_EVALUATE, Metrics.since(evaluateMark));
+			
+			if (!output.result.equals(Resources.NULLEXPR) && Resources.isGraphics(output.result)) {
+				long imageMark = System.nanoTime();
+				output.image = kernel.evaluateToImage(output.result);
+				Metrics.record(Metrics.KERNEL_IMAGE, Metrics.since(imageMark));
+			}
+		} finally {
+			kernel.setListener(listener);
+		}
+		
+		output.time = System.currentTimeMillis() - mark;
+		return output;
+	}
+	
+	/**
+	 * Queues a statement for the next free helper. The definitions map user
+	 * symbols to their Language`ExtendedFullDefinition as of the given
+	 * epoch; a helper is only sent those it has not seen at that epoch. The
+	 * output is null if the group was aborted before the statement started.
+	 */
+	public Future<Output> submit(final String query, final Map<String, Expr> definitions, final long epoch) {
+		final long generation = aborts.get();
+		return executor.submit(new Callable<Output>() {
+			public Output call() throws Exception {
+				Helper helper;
+				while ((helper = idle.poll(1, TimeUnit.SECONDS)) == null) {
+					if (live.get() == 0 || closed)
+						throw new IOException("No helper kernels left in the group");
+				}
+				
+				if (aborts.get() != generation) {
+					idle.add(helper);
+					return null;
+				}
+				
+				boolean healthy = false;
+				try {
+					define(helper, definitions, epoch);
+					Output output = evaluate(helper.kernel, query, null);
+					healthy = true;
+					return output;
+				} finally {
+					if (healthy && !closed)
+						idle.add(helper);
+					else
+						retire(helper);
+				}
+			}
+		});
+	}
+	
+	private void define(Helper helper, Map<String, Expr> definitions, long epoch) throws MathLinkException {
+		List<Expr> updates = new ArrayList<Expr>();
+		for (Map.Entry<String, Expr> entry : definitions.entrySet()) {
+			Long synced = helper.synced.get(entry.getKey());
+			if (synced != null && synced == epoch)
+				continue;
+			
+			updates.add(new Expr(new Expr(Expr.SYMBOL, "Set"), new Expr[] { DEFINITIONS, entry.getValue() }));
+			helper.synced.put(entry.getKey(), epoch);
+		}
+		
+		if (updates.isEmpty())
+			return;
+		
+		updates.add(Resources.NULLEXPR);
+		helper.kernel.evaluate(new Expr(new Expr(Expr.SYMBOL, "CompoundExpression"),
+				updates.toArray(new Expr[updates.size()])));
+	}
+	
+	/**
+	 * Closes a helper whose link failed, replacing it with a fresh kernel
+	 * from the pool if the group is still in use.
+	 */
+	private void retire(Helper helper) {
+		members.remove(helper.kernel);
+		helper.kernel.close();
+		
+		if (!closed) {
+			try {
+				add(kernelPool.checkout());
+				return;
+			} catch (MathLinkException e) {
+				Log.warn("Failed to replace helper kernel: " + e.getMessage());
+			}
+		}
+		live.decrementAndGet();
+	}
+	
+	private void add(Kernel kernel) {
+		members.add(kernel);
+		idle.add(new Helper(kernel));
+	}
+	
+	/**
+	 * Aborts whatever the helpers are evaluating and drops the statements
+	 * still waiting for one.
+	 */
+	public void abort() {
+		aborts.incrementAndGet();
+		for (Kernel kernel : members)
+			kernel.abort();
+	}
+	
+	/**
+	 * Closes the idle helpers; helpers still evaluating are closed as soon
+	 * as they finish.
+	 */
+	public void close() {
+		closed = true;
+		executor.shutdown();
+		
+		Helper helper;
+		while ((helper = idle.poll()) != null) {
+			members.remove(helper.kernel);
+			helper.kernel.close();
+			live.decrementAndGet();
+		}
+	}
+}
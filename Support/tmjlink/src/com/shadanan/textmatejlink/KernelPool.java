@@ -0,0 +1,132 @@
+package com.shadanan.textmatejlink;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wolfram.jlink.MathLinkException;
+
+/**
+ * Keeps a number of launched, idle kernels around so that a new or reset
+ * session can start evaluating without waiting for MathKernel to boot.
+ * Every checkout schedules a replacement launch in the background.
+ * The backend is either "jlink" for MathKernel or "fake" for FakeKernel.
+ */
+public class KernelPool {
+	public static final String JLINK = "jlink";
+	public static final String FAKE = "fake";
+	
+	private String backend = null;
+	private String[] mlargs = null;
+	private int spares = 0;
+	private volatile boolean running = false;
+	private LinkedBlockingQueue<Kernel> idle = null;
+	private ExecutorService launcher = null;
+	private AtomicInteger launching = null;
+	private AtomicLong hits = null;
+	private AtomicLong misses = null;
+	
+	public KernelPool(String backend, String[] mlargs, int spares) {
+		this.backend = backend;
+		this.mlargs = mlargs;
+		this.spares = Math.max(spares, 0);
+		this.running = true;
+		this.idle = new LinkedBlockingQueue<Kernel>();
+		this.launching = new AtomicInteger();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.launcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "tmjlink-kernel-launcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Hands out an idle kernel, launching one synchronously only if the pool
+	 * is empty. The caller owns the returned kernel and must close it.
+	 */
+	public Kernel checkout() throws MathLinkException {
+		Kernel kernel = idle.poll();
+		
+		if (kernel != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			kernel = launch();
+		}
+		
+		replenish();
+		return kernel;
+	}
+	
+	/**
+	 * Schedules background launches until idle plus in-flight kernels reach
+	 * the configured spare count.
+	 */
+	public synchronized void replenish() {
+		while (running && idle.size() + launching.get() < spares) {
+			launching.incrementAndGet();
+			try {
+				launcher.execute(new Runnable() {
+					public void run() {
+						try {
+							Kernel kernel = launch();
+							if (running) {
+								idle.add(kernel);
+							} else {
+								kernel.close();
+							}
+						} catch (MathLinkException e) {
+							Log.warn("Failed to launch spare kernel: " + e.getMessage());
+						} finally {
+							launching.decrementAndGet();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				launching.decrementAndGet();
+				return;
+			}
+		}
+	}
+	
+	protected Kernel launch() throws MathLinkException {
+		if (backend.equals(FAKE))
+			return new FakeKernel();
+		return new JLinkKernel(mlargs);
+	}
+	
+	public void close() {
+		running = false;
+		launcher.shutdownNow();
+		
+		Kernel kernel;
+		while ((kernel = idle.poll()) != null) {
+			kernel.close();
+		}
+	}
+	
+	public int getIdleCount() {
+		return idle.size();
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public void printStatus() {
+		Log.info("Kernel Pool: " + idle.size() + " idle, " + launching.get() + " launching, " +
+				spares + " target, " + hits.get() + " hits, " + misses.get() + " misses");
+	}
+}
@@ -0,0 +1,77 @@
+package com.shadanan.textmatejlink;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * The WebSocket subscribers following a session's output. Everything a
+ * session streams to the connection that is evaluating is published here
+ * as well, as text messages of the form "<type>\n<html>":
+ * 
+ *   inline   part of the cell group being evaluated
+ *   cell     the part that closes the cell group
+ *   resync   the history changed or the subscriber fell behind; it has to
+ *            reload the session page and subscribe again
+ * 
+ * A message is encoded once and the same frame is queued for every
+ * subscriber. A subscriber whose backlog exceeds tmjlink.live.backlog
+ * bytes is sent resync and dropped, so a slow viewer never holds output
+ * in memory for long or slows down the evaluation.
+ */
+public class LiveFeed {
+	public static final String INLINE = "inline";
+	public static final String CELL = "cell";
+	public static final String RESYNC = "resync";
+	
+	private HttpServer server = null;
+	private String sessionId = null;
+	private CopyOnWriteArraySet<HttpConnection> subscribers = null;
+	
+	public LiveFeed(HttpServer server, String sessionId) {
+		this.server = server;
+		this.sessionId = sessionId;
+		this.subscribers = new CopyOnWriteArraySet<HttpConnection>();
+	}
+	
+	public String getSessionId() {
+		return sessionId;
+	}
+	
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+	
+	/**
+	 * Called on the HTTP selector thread.
+	 */
+	void subscribe(HttpConnection connection) {
+		subscribers.add(connection);
+		Metrics.count("live.subscribes");
+	}
+	
+	void unsubscribe(HttpConnection connection) {
+		subscribers.remove(connection);
+	}
+	
+	/**
+	 * Queues a message for all subscribers. May be called from any thread;
+	 * costs nothing while nobody is subscribed.
+	 */
+	public void publish(String type, String html) {
+		if (subscribers.isEmpty())
+			return;
+		
+		final ByteBuffer frame = HttpConnection.textFrame(html == null ? type : type + "\n" + html);
+		Metrics.record("live.frame.bytes", frame.remaining());
+		server.post(new Runnable() {
+			public void run() {
+				for (HttpConnection subscriber : subscribers)
+					subscriber.push(frame.duplicate());
+			}
+		});
+	}
+	
+	public void resync() {
+		publish(RESYNC, null);
+	}
+}
@@ -0,0 +1,180 @@
+package com.shadanan.textmatejlink;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Leveled, asynchronous logger writing to standard output, which mathmate.py
+ * sends to tmjlink.log. Messages go into a fixed-size ring buffer and are
+ * written by a background thread, so a slow log file never holds up a
+ * session. When the buffer is full new messages are dropped and counted.
+ * 
+ * tmjlink.log.level (DEBUG, INFO, WARN, ERROR or OFF, default INFO) picks
+ * what is logged; protocol traffic is logged at DEBUG. tmjlink.log.payload
+ * (default 256) caps how many characters of a payload are logged and
+ * tmjlink.log.buffer (default 8192) sizes the ring buffer.
+ */
+public class Log {
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	public static final int OFF = 4;
+	
+	private static final String[] NAMES = { "DEBUG", "INFO", "WARN", "ERROR", "OFF" };
+	
+	private static final int LEVEL = parseLevel(System.getProperty("tmjlink.log.level", "INFO"));
+	private static final int PAYLOAD_LIMIT = Integer.getInteger("tmjlink.log.payload", 256);
+	private static final String[] RING = new String[Math.max(Integer.getInteger("tmjlink.log.buffer", 8192), 16)];
+	private static final Object LOCK = new Object();
+	
+	private static int head = 0;
+	private static int count = 0;
+	private static long dropped = 0;
+	private static boolean writing = false;
+	
+	static {
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						drain();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "tmjlink-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	private Log() {
+	}
+	
+	private static int parseLevel(String name) {
+		for (int i = 0; i < NAMES.length; i++) {
+			if (NAMES[i].equalsIgnoreCase(name.trim()))
+				return i;
+		}
+		return INFO;
+	}
+	
+	public static boolean isEnabled(int messageLevel) {
+		return messageLevel >= LEVEL;
+	}
+	
+	public static boolean isDebugEnabled() {
+		return LEVEL == DEBUG;
+	}
+	
+	public static void debug(String message) {
+		log(DEBUG, message);
+	}
+	
+	public static void info(String message) {
+		log(INFO, message);
+	}
+	
+	public static void warn(String message) {
+		log(WARN, message);
+	}
+	
+	public static void error(String message) {
+		log(ERROR, message);
+	}
+	
+	public static void error(Throwable e) {
+		error(null, e);
+	}
+	
+	public static void error(String message, Throwable e) {
+		if (!isEnabled(ERROR))
+			return;
+		
+		StringWriter trace = new StringWriter();
+		PrintWriter writer = new PrintWriter(trace);
+		if (message != null)
+			writer.println(message);
+		e.printStackTrace(writer);
+		writer.flush();
+		
+		String text = trace.toString();
+		log(ERROR, text.endsWith("\n") ? text.substring(0, text.length() - 1) : text);
+	}
+	
+	/**
+	 * Shortens a payload to the configured number of characters.
+	 */
+	public static String payload(String data) {
+		if (data == null || data.length() <= PAYLOAD_LIMIT)
+			return data;
+		return data.substring(0, PAYLOAD_LIMIT) + "... (" + data.length() + " chars)";
+	}
+	
+	private static void log(int messageLevel, String message) {
+		if (messageLevel < LEVEL)
+			return;
+		
+		String line = NAMES[messageLevel] + " " + message;
+		synchronized (LOCK) {
+			if (count == RING.length) {
+				dropped++;
+				return;
+			}
+			
+			RING[(head + count) % RING.length] = line;
+			count++;
+			if (count == 1)
+				LOCK.notifyAll();
+		}
+	}
+	
+	/**
+	 * Blocks until every message logged so far has been written.
+	 */
+	public static void flush() {
+		try {
+			synchronized (LOCK) {
+				while (count > 0 || writing)
+					LOCK.wait(100);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Takes everything in the ring buffer and writes it with a single call.
+	 */
+	private static void drain() throws InterruptedException {
+		StringBuilder batch = new StringBuilder();
+		
+		synchronized (LOCK) {
+			while (count == 0 && dropped == 0)
+				LOCK.wait();
+			
+			if (dropped > 0) {
+				batch.append(NAMES[WARN]).append(" ").append(dropped).append(" log messages dropped\n");
+				dropped = 0;
+			}
+			while (count > 0) {
+				batch.append(RING[head]).append('\n');
+				RING[head] = null;
+				head = (head + 1) % RING.length;
+				count--;
+			}
+			writing = true;
+		}
+		
+		try {
+			System.out.print(batch);
+			System.out.flush();
+		} finally {
+			synchronized (LOCK) {
+				writing = false;
+				LOCK.notifyAll();
+			}
+		}
+	}
+}
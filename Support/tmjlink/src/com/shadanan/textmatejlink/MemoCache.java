@@ -0,0 +1,258 @@
+package com.shadanan.textmatejlink;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the output of side-effect-free statements so that re-running
+ * an unchanged document replays it instead of calling the kernel. Entries
+ * are keyed by the normalized statement text, the image flag and the
+ * kernel-state epoch of the session: a hash chain over every statement with
+ * side effects run since the kernel started. Statements whose effects are
+ * not reproducible (random numbers, clocks, files) extend the chain with a
+ * unique nonce, so nothing evaluated after them can hit.
+ * 
+ * classify() only sees the statement text. A call to a user function, say
+ * inc[] := counter++, looks pure to it, so Resources also asks the kernel
+ * whether a statement refers to a non-built-in symbol with code attached,
+ * defined in the session or loaded from a package, and treats it as
+ * volatile if so. Built-in functions are trusted to the lists below; one
+ * with side effects that is missing from them is replayed without them.
+ */
+public class MemoCache {
+	public static final int PURE = 0;
+	public static final int EFFECT = 1;
+	public static final int VOLATILE = 2;
+	
+	private static final AtomicLong NONCES = new AtomicLong();
+	private static final String OPERATOR_CHARS = "+-*/=<>!&|@^:;.~?%#'\\";
+	
+	private static final HashSet<String> EFFECTS = new HashSet<String>(Arrays.asList(
+			"Set", "SetDelayed", "UpSet", "UpSetDelayed", "TagSet", "TagSetDelayed", "Unset",
+			"Clear", "ClearAll", "Remove", "SetAttributes", "ClearAttributes", "Protect", "Unprotect",
+			"SetOptions", "AppendTo", "PrependTo", "AddTo", "SubtractFrom", "TimesBy", "DivideBy",
+			"Increment", "Decrement", "PreIncrement", "PreDecrement", "Begin", "End",
+			"BeginPackage", "EndPackage", "Put", "PutAppend", "Export", "SetDirectory",
+			"ResetDirectory", "CreateFile", "DeleteFile", "CopyFile", "RenameFile",
+			"CreateDirectory", "DeleteDirectory", "Write", "WriteString", "Close", "Message",
+			"Off", "On", "Format", "MakeBoxes", "Dynamic", "DynamicModule", "$Context",
+			"$ContextPath", "$Path", "$RecursionLimit", "$IterationLimit", "$Post", "$Pre",
+			"$PrePrint"));
+	
+	private static final HashSet<String> VOLATILES = new HashSet<String>(Arrays.asList(
+			"Random", "SeedRandom", "Date", "DateList", "DateString", "AbsoluteTime", "TimeUsed",
+			"SessionTime", "Timing", "AbsoluteTiming", "Now", "Today", "Get", "Needs", "Import",
+			"Read", "ReadList", "OpenRead", "OpenWrite", "OpenAppend", "Run", "RunThrough",
+			"Install", "Uninstall", "LinkLaunch", "Environment", "FileNames", "FileDate",
+			"URLFetch", "URLRead", "URLExecute", "In", "Out", "MessageList", "Pause", "Abort",
+			"Quit", "Exit", "$Line", "$MessageList", "$SessionID", "$ProcessID", "$TimeZone"));
+	
+	private LinkedHashMap<String, Journal.Cell> entries = null;
+	private long hits = 0;
+	private long misses = 0;
+	private long bypasses = 0;
+	
+	public MemoCache(final int capacity) {
+		this.entries = new LinkedHashMap<String, Journal.Cell>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Journal.Cell> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	public static String key(long epoch, boolean evalToImage, String normalized) {
+		return Long.toHexString(epoch) + (evalToImage ? " image " : " text ") + normalized;
+	}
+	
+	public synchronized Journal.Cell get(String key) {
+		Journal.Cell cell = entries.get(key);
+		if (cell != null)
+			hits++;
+		else
+			misses++;
+		return cell;
+	}
+	
+	public synchronized void put(String key, Journal.Cell cell) {
+		entries.put(key, cell);
+	}
+	
+	/**
+	 * Counts a statement that could not be looked up because of its effects.
+	 */
+	public synchronized void bypass() {
+		bypasses++;
+	}
+	
+	/**
+	 * Counts a hit that had to be evaluated after all, e.g. because one of
+	 * its images was evicted in the meantime.
+	 */
+	public synchronized void unhit() {
+		hits--;
+		misses++;
+	}
+	
+	/**
+	 * Returns the epoch following a statement with side effects.
+	 */
+	public static long advance(long epoch, String normalized, int effect) {
+		long hash = epoch * 0x9e3779b97f4a7c15L;
+		if (effect == VOLATILE) {
+			hash ^= NONCES.incrementAndGet() * 0xc2b2ae3d27d4eb4fL;
+		} else {
+			for (int i = 0; i < normalized.length(); i++)
+				hash = (hash ^ normalized.charAt(i)) * 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+	
+	/**
+	 * Strips comments and whitespace outside string literals, keeping a single
+	 * space only where it separates two names or numbers (implicit Times) or
+	 * two operator characters that would otherwise read as one operator.
+	 */
+	public static String normalize(String statement) {
+		StringBuilder result = new StringBuilder(statement.length());
+		int length = statement.length();
+		boolean space = false;
+		
+		for (int i = 0; i < length; i++) {
+			char c = statement.charAt(i);
+			
+			if (c == '"') {
+				int end = skipString(statement, i);
+				space = false;
+				result.append(statement, i, end);
+				i = end - 1;
+			} else if (c == '(' && i + 1 < length && statement.charAt(i + 1) == '*') {
+				i = skipComment(statement, i) - 1;
+				space = true;
+			} else if (Character.isWhitespace(c)) {
+				space = true;
+			} else {
+				if (space && result.length() > 0 && isSeparated(result.charAt(result.length() - 1), c))
+					result.append(' ');
+				space = false;
+				result.append(c);
+			}
+		}
+		
+		return result.toString();
+	}
+	
+	/**
+	 * Classifies a normalized statement as PURE, EFFECT (changes kernel state
+	 * reproducibly) or VOLATILE (depends on or changes the outside world).
+	 */
+	public static int classify(String normalized) {
+		int effect = PURE;
+		int length = normalized.length();
+		
+		for (int i = 0; i < length; i++) {
+			char c = normalized.charAt(i);
+			char next = i + 1 < length ? normalized.charAt(i + 1) : 0;
+			
+			if (c == '"') {
+				i = skipString(normalized, i) - 1;
+			} else if (Character.isLetter(c) || c == '$') {
+				int start = i;
+				while (i + 1 < length && isNameChar(normalized.charAt(i + 1)))
+					i++;
+				String name = normalized.substring(start, i + 1);
+				name = name.substring(name.lastIndexOf('`') + 1);
+				
+				if (name.startsWith("Random") || VOLATILES.contains(name))
+					return VOLATILE;
+				if (EFFECTS.contains(name))
+					effect = EFFECT;
+			} else if (c == '%' || (c == '<' && next == '<')) {
+				return VOLATILE;
+			} else if (c == '=') {
+				if (next == '=') {
+					i += (i + 2 < length && normalized.charAt(i + 2) == '=') ? 2 : 1;
+				} else if (next == '!' && i + 2 < length && normalized.charAt(i + 2) == '=') {
+					i += 2;
+				} else {
+					effect = EFFECT;
+				}
+			} else if ((c == '!' || c == '<' || c == '>') && next == '=') {
+				i++;
+			} else if ((c == '+' || c == '-') && next == c) {
+				effect = EFFECT;
+			} else if (c == '>' && next == '>') {
+				effect = EFFECT;
+			}
+		}
+		
+		return effect;
+	}
+	
+	private static boolean isSeparated(char before, char after) {
+		if (isWordChar(before))
+			return isWordChar(after);
+		return OPERATOR_CHARS.indexOf(before) != -1 && OPERATOR_CHARS.indexOf(after) != -1;
+	}
+	
+	private static boolean isWordChar(char c) {
+		return isNameChar(c) || c == '_' || c == '.';
+	}
+	
+	private static boolean isNameChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '$' || c == '`';
+	}
+	
+	private static int skipString(String text, int start) {
+		for (int i = start + 1; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '"')
+				return i + 1;
+		}
+		return text.length();
+	}
+	
+	private static int skipComment(String text, int start) {
+		int depth = 0;
+		for (int i = start; i + 1 < text.length(); i++) {
+			if (text.charAt(i) == '(' && text.charAt(i + 1) == '*') {
+				depth++;
+				i++;
+			} else if (text.charAt(i) == '*' && text.charAt(i + 1) == ')') {
+				depth--;
+				i++;
+				if (depth == 0)
+					return i + 1;
+			}
+		}
+		return text.length();
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getBypasses() {
+		return bypasses;
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	public synchronized void printStatus() {
+		Log.info("Memo Cache: " + entries.size() + " entries, " + hits + " hits, " +
+				misses + " misses, " + bypasses + " bypasses");
+	}
+}
@@ -0,0 +1,209 @@
+package com.shadanan.textmatejlink;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Process wide registry of histograms, counters and gauges. Metrics are
+ * created on first use and are cheap enough to update on every command and
+ * evaluation. They are reported by the stats command and published as the
+ * JMX MBean com.shadanan.textmatejlink:type=Metrics.
+ */
+public class Metrics {
+	public static final String KERNEL_EVALUATE = "kernel.evaluate.us";
+	public static final String KERNEL_IMAGE = "kernel.image.us";
+	public static final String RENDER_TIME = "render.us";
+	public static final String RENDER_CHARS = "render.chars";
+	public static final String SEND_BYTES = "send.bytes";
+	public static final String OUTPUT_WRITE = "output.write.us";
+	public static final String OUTPUT_QUERY = "output.query.us";
+	
+	private static final ConcurrentHashMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<String, Histogram>();
+	private static final ConcurrentHashMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+	private static final ConcurrentHashMap<String, Gauge> GAUGES = new ConcurrentHashMap<String, Gauge>();
+	
+	public interface Gauge {
+		long getValue();
+	}
+	
+	private Metrics() {
+	}
+	
+	public static Histogram histogram(String name) {
+		Histogram histogram = HISTOGRAMS.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = HISTOGRAMS.putIfAbsent(name, created);
+			if (histogram == null)
+				histogram = created;
+		}
+		return histogram;
+	}
+	
+	public static void record(String name, long value) {
+		histogram(name).record(value);
+	}
+	
+	public static void count(String name) {
+		AtomicLong counter = COUNTERS.get(name);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = COUNTERS.putIfAbsent(name, created);
+			if (counter == null)
+				counter = created;
+		}
+		counter.incrementAndGet();
+	}
+	
+	public static void gauge(String name, Gauge gauge) {
+		GAUGES.put(name, gauge);
+	}
+	
+	/**
+	 * Microseconds elapsed since a System.nanoTime() mark.
+	 */
+	public static long since(long mark) {
+		return (System.nanoTime() - mark) / 1000;
+	}
+	
+	public static String toJson() {
+		StringBuilder result = new StringBuilder();
+		
+		result.append("{\"counters\":{");
+		appendValues(result, snapshotCounters());
+		result.append("},\"gauges\":{");
+		appendValues(result, snapshotGauges());
+		result.append("},\"histograms\":{");
+		boolean first = true;
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(HISTOGRAMS).entrySet()) {
+			if (!first)
+				result.append(",");
+			result.append('"').append(entry.getKey()).append("\":").append(entry.getValue().toJson());
+			first = false;
+		}
+		result.append("}}");
+		
+		return result.toString();
+	}
+	
+	private static void appendValues(StringBuilder result, Map<String, Long> values) {
+		boolean first = true;
+		for (Map.Entry<String, Long> entry : values.entrySet()) {
+			if (!first)
+				result.append(",");
+			result.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+			first = false;
+		}
+	}
+	
+	private static TreeMap<String, Long> snapshotCounters() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet())
+			values.put(entry.getKey(), entry.getValue().get());
+		return values;
+	}
+	
+	private static TreeMap<String, Long> snapshotGauges() {
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : GAUGES.entrySet()) {
+			try {
+				values.put(entry.getKey(), entry.getValue().getValue());
+			} catch (RuntimeException e) {
+				// A gauge racing with shutdown; leave it out
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * Flattens every metric into name/value pairs, histograms as one entry
+	 * per statistic.
+	 */
+	private static TreeMap<String, Long> snapshot() {
+		TreeMap<String, Long> values = snapshotCounters();
+		values.putAll(snapshotGauges());
+		for (Map.Entry<String, Histogram> entry : HISTOGRAMS.entrySet()) {
+			Histogram histogram = entry.getValue();
+			values.put(entry.getKey() + ".count", histogram.getCount());
+			values.put(entry.getKey() + ".mean", histogram.getMean());
+			values.put(entry.getKey() + ".p50", histogram.getPercentile(50));
+			values.put(entry.getKey() + ".p90", histogram.getPercentile(90));
+			values.put(entry.getKey() + ".p99", histogram.getPercentile(99));
+			values.put(entry.getKey() + ".max", histogram.getMax());
+		}
+		return values;
+	}
+	
+	public static void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+					new ObjectName("com.shadanan.textmatejlink:type=Metrics"));
+		} catch (Exception e) {
+			Log.warn("Failed to register metrics MBean: " + e.getMessage());
+		}
+	}
+	
+	public static void printStatus() {
+		for (Map.Entry<String, Long> entry : snapshot().entrySet())
+			Log.info("Metric " + entry.getKey() + ": " + entry.getValue());
+	}
+	
+	/**
+	 * Read-only MBean exposing the flattened metrics as Long attributes. The
+	 * attribute list grows as metrics are created.
+	 */
+	static class MetricsMBean implements DynamicMBean {
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long value = snapshot().get(attribute);
+			if (value == null)
+				throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+		
+		public AttributeList getAttributes(String[] attributes) {
+			TreeMap<String, Long> values = snapshot();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				if (values.containsKey(attribute))
+					list.add(new Attribute(attribute, values.get(attribute)));
+			}
+			return list;
+		}
+		
+		public MBeanInfo getMBeanInfo() {
+			ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (String name : snapshot().keySet())
+				attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+			
+			return new MBeanInfo(getClass().getName(), "TextMateJLink metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+					new MBeanOperationInfo[0], null);
+		}
+		
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+		
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+		}
+		
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+	}
+}
@@ -1,50 +1,158 @@
 package com.shadanan.textmatejlink;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.UUID;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.wolfram.jlink.Expr;
 import com.wolfram.jlink.ExprFormatException;
-import com.wolfram.jlink.KernelLink;
 import com.wolfram.jlink.MathLink;
 import com.wolfram.jlink.MathLinkException;
-import com.wolfram.jlink.MathLinkFactory;
-import com.wolfram.jlink.PacketArrivedEvent;
-import com.wolfram.jlink.PacketListener;
 
-public class Resources implements PacketListener {
+public class Resources implements Kernel.Listener {
 	public static final Expr NULLEXPR = new Expr(Expr.SYMBOL, "Null");
+	public static final Expr ABORTED = new Expr(Expr.SYMBOL, "$Aborted");
+	
+	// Shared by all sessions and seeded from the clock so that versions handed
+	// out by an earlier server process are never mistaken for current ones
+	private static final AtomicLong VERSIONS = new AtomicLong(System.currentTimeMillis() * 1000);
+	
+	// Statements that change what later statements mean in ways helper
+	// kernels would not see; a document using them is run sequentially
+	private static final HashSet<String> SEQUENTIAL = new HashSet<String>(Arrays.asList(
+			"Get", "Needs", "Begin", "BeginPackage", "End", "EndPackage", "SetDirectory", "ResetDirectory"));
+	
+	// Selects symbols with code attached, which may change the session's
+	// state when run; DownValues and the like hold their argument
+	private static final String HAS_CODE = "ToExpression[#, InputForm, Function[s, DownValues[s] =!= {} || " +
+			"SubValues[s] =!= {} || UpValues[s] =!= {} || MatchQ[OwnValues[s], {_RuleDelayed, ___}], HoldAllComplete]] &";
 	
 	private String sessionId = null;
 	private String cacheFolder = null;
-	private KernelLink kernelLink = null;
+	private volatile Kernel kernel = null;
 	private int currentCount = 0;
-	private String[] mlargs = null;
+	private KernelPool kernelPool = null;
+	private ImageStore imageStore = null;
 	private ArrayList<Resources.Resource> resources = null;
+	private HistorySpill spill = null;
+	private Journal journal = null;
+	private MemoCache memo = null;
+	private long memoEpoch = 0;
+	private Document document = null;
+	private volatile KernelGroup group = null;
+	private volatile boolean abortRequested = false;
+	private int groupSize = 0;
+	private int previewChars = 0;
+	private int previewElements = 0;
+	private int lastElided = -1;
+	private long definitionEpoch = 0;
+	private int messageCount = 0;
+	private int abortCount = 0;
+	private long historyBudget = 0;
+	private long heapBytes = 0;
+	private HashMap<Integer, String> renderCache = null;
+	private long renderCacheChars = 0;
+	private HashMap<Integer, Long> groupVersions = null;
+	private volatile long version = 0;
+	private long resyncVersion = 0;
+	private SymbolIndex baseSymbols = null;
+	private SymbolIndex symbolIndex = null;
+	private LinkedHashMap<String, String[]> contextSymbols = null;
+	private boolean symbolsDirty = true;
+	private LiveFeed feed = null;
 	private Session session;
 	
-	public Resources(String sessionId, String cacheFolder, String[] mlargs) 
-			throws MathLinkException, IOException {
+	public Resources(String sessionId, String cacheFolder, KernelPool kernelPool, SymbolIndex baseSymbols, 
+			ImageStore imageStore, MemoCache memo) throws MathLinkException, IOException {
 		this.sessionId = sessionId;
 		this.cacheFolder = cacheFolder;
-		this.mlargs = mlargs;
+		this.kernelPool = kernelPool;
+		this.imageStore = imageStore;
+		this.memo = memo;
+		this.document = new Document();
+		this.baseSymbols = baseSymbols;
+		this.symbolIndex = baseSymbols;
+		this.contextSymbols = new LinkedHashMap<String, String[]>();
 		this.resources = new ArrayList<Resources.Resource>();
+		this.spill = new HistorySpill(getNamedFile("history.spill"));
+		this.historyBudget = Long.getLong("tmjlink.history.budget", 64L * 1024 * 1024);
+		this.groupSize = Integer.getInteger("tmjlink.parallel.kernels", Runtime.getRuntime().availableProcessors());
+		this.previewChars = Integer.getInteger("tmjlink.preview.chars", 16 * 1024);
+		this.previewElements = Integer.getInteger("tmjlink.preview.elements", 200);
+		this.renderCache = new HashMap<Integer, String>();
+		this.groupVersions = new HashMap<Integer, Long>();
+		this.version = VERSIONS.incrementAndGet();
+		this.resyncVersion = version;
 		
-		// Allocate the kernel link and register packet listener
-		kernelLink = MathLinkFactory.createKernelLink(mlargs);
-		kernelLink.addPacketListener(this);
-		kernelLink.discardAnswer();
+		// Check out a running kernel and listen to what it prints
+		kernel = kernelPool.checkout();
+		kernel.setListener(this);
 		
-		// Create cache folder
+		// Create cache folder, keeping the journal of an earlier server process
 		File sessionFolderPointer = getSessionFolder();
-		if (sessionFolderPointer.exists())
-			delete(sessionFolderPointer);
 		sessionFolderPointer.mkdir();
+		spill.delete();
+		
+		journal = new Journal(getNamedFile("history.journal"), 
+				Long.getLong("tmjlink.journal.compact", 4L * 1024 * 1024));
+		restore();
+	}
+	
+	/**
+	 * Rebuilds the history recorded in the journal. Images that have since
+	 * been evicted are dropped and their text output is shown instead.
+	 */
+	private void restore() throws IOException {
+		List<Journal.Cell> cells = journal.open();
+		
+		for (Journal.Cell cell : cells) {
+			int count = cell.getCount();
+			int start = resources.size();
+			boolean missingImage = false;
+			currentCount = count;
+			
+			for (Journal.Entry entry : cell.getEntries()) {
+				if (entry.getType() == MathLink.DISPLAYPKT && !imageStore.adopt(sessionId, entry.getValue())) {
+					missingImage = true;
+					continue;
+				}
+				
+				Resource resource = new Resource(entry.getType(), entry.getValue());
+				resource.subdue = entry.isSubdued() && !missingImage;
+				resource.setTime(entry.getTime());
+				if (entry.getType() == MathLink.RETURNPKT && getOutputFile(count).exists()) {
+					resource.elided = true;
+					lastElided = count;
+				}
+				resources.add(resource);
+			}
+			
+			touch(count);
+			currentCount = count + 1;
+			
+			String html = renderGroup(count, start, resources.size());
+			renderCache.put(count, html);
+			renderCacheChars += html.length();
+			enforceBudget();
+		}
+		
+		if (!cells.isEmpty())
+			Log.info("Restored " + cells.size() + " cells from journal for Session ID: " + sessionId);
 	}
 	
 	public static boolean delete(File file) {
@@ -62,8 +170,53 @@ public class Resources implements PacketListener {
 		return sessionId;
 	}
 	
+	/**
+	 * Everything streamed to the evaluating connection is published to the
+	 * feed as well, for viewers of the session page.
+	 */
+	public void setFeed(LiveFeed feed) {
+		this.feed = feed;
+	}
+	
 	public int getSize() {
-		return resources.size();
+		return resources.size() + spill.getResourceCount();
+	}
+	
+	/**
+	 * The version is bumped whenever a cell group is added or changes.
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * A client that last synced at the given version can only catch up with
+	 * a delta if nothing was cleared since and the version was issued here.
+	 */
+	public boolean isResyncRequired(long since) {
+		return since < resyncVersion || since > version;
+	}
+	
+	/**
+	 * Approximate heap used by cached cell group HTML (UTF-16 chars).
+	 */
+	public long getRenderCacheBytes() {
+		return renderCacheChars * 2;
+	}
+	
+	/**
+	 * Approximate heap used by the cells still held in memory.
+	 */
+	public long getHeapBytes() {
+		return heapBytes;
+	}
+	
+	public long getSpillBytes() {
+		return spill.getSize();
+	}
+	
+	public long getJournalBytes() {
+		return journal.getSize();
 	}
 	
 	public File getSessionFolder() {
@@ -75,64 +228,329 @@ public class Resources implements PacketListener {
 		return file;
 	}
 	
+	/**
+	 * The full text of a shortened result, kept next to the history.
+	 */
+	public File getOutputFile(int count) {
+		return getNamedFile("out" + count + ".txt");
+	}
+	
+	/**
+	 * Returns the full text of the given shortened result, or of the last
+	 * one if count is -1, or null if there is none.
+	 */
+	public File getFullOutput(int count) {
+		if (count == -1)
+			count = lastElided;
+		
+		File file = getOutputFile(count);
+		return count >= 0 && file.exists() ? file : null;
+	}
+	
+	/**
+	 * Returns the result of the given cell, counting back from the next cell
+	 * if count is negative as Out[-1] does. Results that were memoized,
+	 * spilled or restored from the journal are only held as text.
+	 */
+	public Expr getOutput(int count) {
+		if (count < 0)
+			count += currentCount;
+		
+		for (int i = resources.size() - 1; i >= 0; i--) {
+			Resource resource = resources.get(i);
+			if (resource.getCount() < count)
+				break;
+			if (resource.getCount() == count && resource.type == MathLink.RETURNPKT && resource.expr != null)
+				return resource.expr;
+		}
+		
+		throw new IllegalArgumentException("Out[" + count + "] is not held by the server");
+	}
+	
 	public void reconnect() throws MathLinkException {
-		kernelLink.removePacketListener(this);
-		kernelLink.close();
+		closeGroup();
+		kernel.setListener(null);
+		kernel.close();
 		
-		kernelLink = MathLinkFactory.createKernelLink(mlargs);
-		kernelLink.addPacketListener(this);
-		kernelLink.discardAnswer();
+		kernel = kernelPool.checkout();
+		kernel.setListener(this);
 	}
 	
 	public void close() {
-		// Close the kernel link
-		kernelLink.close();
+		// Close the kernel
+		kernel.close();
+		closeGroup();
 		
 		// Release all allocated resources
 		release();
+		journal.delete();
 		
 		// Delete the cache folder (it should be empty now)
 		File cacheFp = getSessionFolder();
 		if (cacheFp.exists()) cacheFp.delete();
 	}
 	
+	/**
+	 * Closes the kernel link on server shutdown, leaving the journal and the
+	 * images it refers to in place for the next server process.
+	 */
+	public void suspend() {
+		kernel.close();
+		closeGroup();
+		spill.delete();
+		journal.close();
+	}
+	
+	private void closeGroup() {
+		if (group != null) {
+			group.close();
+			group = null;
+		}
+	}
+	
 	public void release() {
 		// Delete resources allocated
-		Iterator<Resource> iterator = resources.iterator();
-		while (iterator.hasNext()) {
-			Resource resource = iterator.next();
+		for (Resource resource : resources)
 			resource.release();
-			iterator.remove();
+		resources.clear();
+		spill.release(imageStore, sessionId);
+		heapBytes = 0;
+		
+		// Spilled cells may have shortened results too
+		File[] outputs = getSessionFolder().listFiles();
+		for (int i = 0; outputs != null && i < outputs.length; i++) {
+			if (outputs[i].getName().startsWith("out") && outputs[i].getName().endsWith(".txt"))
+				outputs[i].delete();
 		}
+		lastElided = -1;
+		if (feed != null)
+			feed.resync();
+		
+		try {
+			journal.clear();
+		} catch (IOException e) {
+			Log.warn("Failed to clear journal of Session ID: " + sessionId + " (" + e.getMessage() + ")");
+		}
+		
+		renderCache.clear();
+		renderCacheChars = 0;
+		groupVersions.clear();
+		version = VERSIONS.incrementAndGet();
+		resyncVersion = version;
+	}
+	
+	/**
+	 * Moves the oldest completed cell groups to the spill file until the
+	 * estimated heap used by the history fits the budget again.
+	 */
+	private void enforceBudget() {
+		int drop = 0;
+		long freed = 0;
+		
+		while (drop < resources.size() && heapBytes - freed + renderCacheChars * 2 > historyBudget) {
+			int count = resources.get(drop).getCount();
+			if (count >= currentCount)
+				break;
+			
+			int end = drop;
+			ArrayList<String> images = new ArrayList<String>();
+			while (end < resources.size() && resources.get(end).getCount() == count) {
+				Resource resource = resources.get(end);
+				if (resource.type == MathLink.DISPLAYPKT)
+					images.add(resource.value);
+				freed += resource.size;
+				end++;
+			}
+			
+			String html = renderCache.remove(count);
+			if (html != null)
+				renderCacheChars -= html.length();
+			else
+				html = renderGroup(count, drop, end);
+			
+			try {
+				spill.append(count, html, images, end - drop);
+			} catch (IOException e) {
+				Log.warn("Failed to spill history of Session ID: " + sessionId + " (" + e.getMessage() + ")");
+				break;
+			}
+			
+			drop = end;
+		}
+		
+		if (drop > 0) {
+			resources.subList(0, drop).clear();
+			heapBytes -= freed;
+		}
+	}
+	
+	/**
+	 * Captures the resources of the last cell group.
+	 */
+	private Journal.Cell toCell(int count) {
+		int start = resources.size();
+		while (start > 0 && resources.get(start - 1).getCount() == count)
+			start--;
+		
+		Journal.Cell cell = new Journal.Cell(count);
+		for (int i = start; i < resources.size(); i++) {
+			Resource resource = resources.get(i);
+			cell.add(resource.type, resource.getValue(), resource.subdue, resource.time);
+			if (resource.elided)
+				cell.setShortened(true);
+		}
+		return cell;
+	}
+	
+	/**
+	 * Moves the session to an epoch no other evaluation shares. An aborted
+	 * statement may have changed the kernel state part way, so nothing
+	 * memoized before, here or in another session, applies after it.
+	 */
+	private void forgetEpoch(String query) {
+		if (memo != null)
+			memoEpoch = MemoCache.advance(memoEpoch, query, MemoCache.VOLATILE);
+	}
+	
+	/**
+	 * Remembers the last cell group for the memo cache. Cells with shortened
+	 * results are left out: their full text only exists in the session that
+	 * evaluated them, so they are evaluated again instead of replayed.
+	 */
+	private void memoize(String memoKey) {
+		Journal.Cell cell = toCell(currentCount);
+		if (!cell.isShortened())
+			memo.put(memoKey, cell);
+	}
+	
+	/**
+	 * Appends the resources of a completed cell group to the journal.
+	 */
+	private void journal(int count) {
+		Journal.Cell cell = toCell(count);
+		
+		try {
+			journal.append(cell);
+		} catch (IOException e) {
+			Log.warn("Failed to journal cell " + count + " of Session ID: " + sessionId + " (" + e.getMessage() + ")");
+		}
+	}
+	
+	/**
+	 * Takes references to the images of a memoized cell, or none of them if
+	 * any has been evicted.
+	 */
+	private boolean adoptImages(Journal.Cell cell) {
+		ArrayList<String> adopted = new ArrayList<String>();
+		for (Journal.Entry entry : cell.getEntries()) {
+			if (entry.getType() != MathLink.DISPLAYPKT)
+				continue;
+			
+			if (!imageStore.adopt(sessionId, entry.getValue())) {
+				for (String image : adopted)
+					imageStore.release(sessionId, image);
+				return false;
+			}
+			adopted.add(entry.getValue());
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds and streams the output of a memoized cell in place of evaluating it.
+	 */
+	private void replay(Journal.Cell cell) throws IOException {
+		for (Journal.Entry entry : cell.getEntries()) {
+			if (entry.getType() == -1)
+				continue;
+			
+			Resource resource = new Resource(entry.getType(), entry.getValue());
+			resource.subdue = entry.isSubdued();
+			add(resource);
+			stream(resource.render(!resource.subdue));
+		}
+	}
+	
+	/**
+	 * Sends part of the cell group being evaluated to the evaluating
+	 * connection and to the live feed of the session.
+	 */
+	private void stream(String html) {
+		session.sendInline(html);
+		if (feed != null)
+			feed.publish(LiveFeed.INLINE, html);
+	}
+	
+	private void add(Resource resource) {
+		resources.add(resource);
+		touch(resource.getCount());
+		
+		if (resource.type == MathLink.MESSAGEPKT)
+			messageCount++;
+		else if (resource.type == MathLink.RETURNPKT && resource.getValue().equals("$Aborted"))
+			abortCount++;
+	}
+	
+	private void touch(int count) {
+		version = VERSIONS.incrementAndGet();
+		groupVersions.put(count, version);
+	}
+	
+	private void invalidate(int count) {
+		String html = renderCache.remove(count);
+		if (html != null)
+			renderCacheChars -= html.length();
+		touch(count);
 	}
 	
 	public String getSuggestions() throws MathLinkException, ExprFormatException {
-		StringBuilder result = new StringBuilder();
-		result.append("[");
+		return SymbolIndex.toJson(getSuggestions("", Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * Answers a completion query from the session's symbol index. The kernel
+	 * is only consulted after an evaluation may have defined new symbols or
+	 * changed $ContextPath, and then only for Global` and new contexts.
+	 */
+	public List<String> getSuggestions(String prefix, int limit) throws MathLinkException, ExprFormatException {
+		if (symbolsDirty)
+			refreshSymbols();
+		return symbolIndex.query(prefix, limit);
+	}
+	
+	private void refreshSymbols() throws MathLinkException, ExprFormatException {
+		Expr contexts = kernel.evaluate("$ContextPath");
 		
-		kernelLink.evaluate("$ContextPath");
-		kernelLink.waitForAnswer();
-		Expr contexts = kernelLink.getExpr();
+		boolean changed = contexts.length() != contextSymbols.size();
+		LinkedHashMap<String, String[]> loaded = new LinkedHashMap<String, String[]>();
 		
 		for (int j = 1; j <= contexts.length(); j++) {
 			String context = contexts.part(j).asString();
-			kernelLink.evaluate("Names[\"" + context + "*\"]");
-			kernelLink.waitForAnswer();
-			Expr symbols = kernelLink.getExpr();
-			
-			for (int i = 1; i <= symbols.length(); i++) {
-				result.append('"');
-				result.append(symbols.part(i).asString());
-				result.append('"');
-				result.append(",");
+			String[] names = contextSymbols.get(context);
+			
+			if (names == null || context.equals("Global`")) {
+				Expr symbols = kernel.evaluate("Names[\"" + context + "*\"]");
+				
+				names = new String[symbols.length()];
+				for (int i = 1; i <= symbols.length(); i++)
+					names[i - 1] = symbols.part(i).asString();
+				
+				String[] previous = contextSymbols.get(context);
+				if (previous == null || !Arrays.equals(previous, names))
+					changed = true;
 			}
+			
+			loaded.put(context, names);
 		}
 		
-		result.append("]");
-		return result.toString();
+		if (changed || !loaded.keySet().equals(contextSymbols.keySet())) {
+			contextSymbols = loaded;
+			symbolIndex = baseSymbols.merge(loaded.values());
+		}
+		symbolsDirty = false;
 	}
 	
-	private String commify(long number) {
+	static String commify(long number) {
 		StringBuilder result = new StringBuilder();
 		String num = String.valueOf(number);
 		
@@ -149,10 +567,11 @@ public class Resources implements PacketListener {
 	}
 	
 	public String evaluate(String query) throws MathLinkException, IOException {
-		kernelLink.evaluate(query);
-		kernelLink.waitForAnswer();
-		Expr result = kernelLink.getExpr();
-		kernelLink.newPacket();
+		symbolsDirty = true;
+		document.invalidate(query);
+		if (memo != null)
+			memoEpoch = MemoCache.advance(memoEpoch, query, MemoCache.VOLATILE);
+		Expr result = kernel.evaluate(query);
 		if (!result.equals(NULLEXPR))
 			return result.toString();
 		return null;
@@ -160,95 +579,649 @@ public class Resources implements PacketListener {
 	
 	public void evaluate(String query, boolean evalToImage, Session session) 
 			throws MathLinkException, IOException {
+		abortRequested = false;
+		document.invalidate(query);
+		evaluateCell(query, evalToImage, session);
+	}
+	
+	/**
+	 * Aborts the evaluations running in the session's kernels and ends the
+	 * document or batch they belong to once the aborted cell is recorded.
+	 * Called without holding the session's lock, from any thread. The
+	 * kernels stay in service.
+	 */
+	public void abort() {
+		abortRequested = true;
+		Metrics.count("evaluation.aborts");
+		
+		kernel.abort();
+		KernelGroup current = group;
+		if (current != null)
+			current.abort();
+	}
+	
+	/**
+	 * Evaluates the statements of a whole document, skipping those that are
+	 * unchanged since the last document run and do not depend on a changed
+	 * definition. In parallel mode independent statements are spread over a
+	 * group of kernels. Returns the number of statements evaluated.
+	 */
+	public int evaluateDocument(List<String> statements, boolean parallel, Session session) 
+			throws MathLinkException, IOException {
+		boolean[] stale = document.update(statements);
+		int evaluated = 0;
+		abortRequested = false;
+		
+		boolean[] helpers = parallel && groupSize > 1 ? planParallel(stale) : null;
+		if (helpers != null && group == null)
+			group = new KernelGroup(kernelPool, groupSize - 1);
+		if (helpers != null && group.size() > 0)
+			return evaluateParallel(statements, stale, helpers, session);
+		
+		for (int i = 0; i < stale.length && !abortRequested; i++) {
+			if (!stale[i])
+				continue;
+			
+			// Aborted statements stay stale for the next run
+			int aborts = abortCount;
+			evaluateCell(statements.get(i), false, session);
+			if (abortCount == aborts)
+				document.evaluated(i);
+			evaluated++;
+		}
+		
+		return evaluated;
+	}
+	
+	/**
+	 * Picks the statements of a document run that can be evaluated by helper
+	 * kernels: those that define nothing and are pure. Returns null if the
+	 * run has to be sequential, because a statement reads the previous
+	 * output, loads a package, switches context or directory, redefines a
+	 * built-in symbol or depends on the session's kernel beyond its
+	 * definitions (random state, In/Out, $Line, files), or if there is
+	 * nothing to spread.
+	 */
+	private boolean[] planParallel(boolean[] stale) {
+		boolean[] helpers = new boolean[stale.length];
+		int count = 0;
+		
+		for (int i = 0; i < stale.length; i++) {
+			if (!stale[i])
+				continue;
+			
+			Statement statement = document.getStatement(i);
+			int effect = MemoCache.classify(statement.getText());
+			if (statement.readsHistory() || statement.dependsOn(SEQUENTIAL) || statement.getText().contains("<<") 
+					|| effect == MemoCache.VOLATILE)
+				return null;
+			for (String name : statement.getDefines()) {
+				if (baseSymbols.contains(name))
+					return null;
+			}
+			
+			helpers[i] = statement.getDefines().isEmpty() && effect == MemoCache.PURE;
+			if (helpers[i])
+				count++;
+		}
+		
+		return count > 1 ? helpers : null;
+	}
+	
+	/**
+	 * Walks the stale statements in source order. Statements that define
+	 * something or refer to a symbol with code attached, such as a function
+	 * that increments a counter, are evaluated here, in the session's kernel,
+	 * so that their effects happen where later statements see them. The
+	 * others are handed to the group together with a snapshot of the user
+	 * definitions they read, so they see the state a sequential run would
+	 * have given them. Outputs join the history strictly in source order, each as soon
+	 * as it and everything before it is done, so the rendered history is the
+	 * same as after a sequential run. Memoized cells are not replayed in this
+	 * mode, but results are still memoized for later runs.
+	 */
+	private int evaluateParallel(List<String> statements, boolean[] stale, boolean[] helpers, Session session)
+			throws MathLinkException, IOException {
+		this.session = session;
+		symbolsDirty = true;
+		
+		// Anything may have been redefined since the last run
+		definitionEpoch++;
+		HashMap<String, Expr> snapshots = new HashMap<String, Expr>();
+		HashSet<String> userSymbols = toNames(kernel.evaluate("Names[\"Global`*\"]"));
+		HashSet<String> functions = withCode("Names[\"Global`*\"]");
+		
+		ArrayList<Integer> indices = new ArrayList<Integer>();
+		ArrayList<String> memoKeys = new ArrayList<String>();
+		ArrayList<Future<KernelGroup.Output>> outputs = new ArrayList<Future<KernelGroup.Output>>();
+		int committed = 0;
+		int aborts = abortCount;
+		
+		for (int i = 0; i < stale.length && !abortRequested; i++) {
+			if (!stale[i])
+				continue;
+			
+			final String query = statements.get(i);
+			Statement statement = document.getStatement(i);
+			
+			String memoKey = null;
+			if (memo != null) {
+				int effect = MemoCache.classify(statement.getText());
+				if (effect == MemoCache.PURE && statement.dependsOn(functions))
+					effect = MemoCache.VOLATILE;
+				if (effect == MemoCache.PURE) {
+					memoKey = MemoCache.key(memoEpoch, false, statement.getText());
+				} else {
+					memo.bypass();
+					memoEpoch = MemoCache.advance(memoEpoch, statement.getText(), effect);
+				}
+			}
+			
+			// A helper would run user code on its own copy of the state
+			Future<KernelGroup.Output> output;
+			if (helpers[i] && !statement.dependsOn(functions)) {
+				output = group.submit(query, snapshot(statement, userSymbols, snapshots), definitionEpoch);
+				Metrics.count("document.parallel");
+			} else {
+				FutureTask<KernelGroup.Output> task = new FutureTask<KernelGroup.Output>(new Callable<KernelGroup.Output>() {
+					public KernelGroup.Output call() throws MathLinkException {
+						return KernelGroup.evaluate(kernel, query, Resources.this);
+					}
+				});
+				task.run();
+				output = task;
+				
+				if (!statement.getDefines().isEmpty()) {
+					userSymbols.addAll(statement.getDefines());
+					functions.removeAll(statement.getDefines());
+					functions.addAll(withCode(toList(statement.getDefines())));
+					snapshots.clear();
+					definitionEpoch++;
+				}
+			}
+			
+			indices.add(i);
+			memoKeys.add(memoKey);
+			outputs.add(output);
+			
+			while (committed < outputs.size() && outputs.get(committed).isDone()) {
+				KernelGroup.Output done = await(outputs.get(committed));
+				if (done == null)
+					break;
+				commit(indices.get(committed), statements, done, memoKey(memoKeys, committed, aborts));
+				committed++;
+			}
+		}
+		
+		// After an abort, statements still waiting for a helper are dropped
+		// and stay stale for the next run
+		while (committed < outputs.size()) {
+			KernelGroup.Output output = await(outputs.get(committed));
+			if (output == null)
+				break;
+			commit(indices.get(committed), statements, output, memoKey(memoKeys, committed, aborts));
+			committed++;
+		}
+		
+		return committed;
+	}
+	
+	/**
+	 * Keys of statements looked up before an earlier statement was aborted
+	 * assumed it completed, so their results are not memoized.
+	 */
+	private String memoKey(List<String> memoKeys, int index, int aborts) {
+		return abortCount == aborts ? memoKeys.get(index) : null;
+	}
+	
+	/**
+	 * True if a statement refers to a symbol with code attached in the
+	 * session's kernel. Calling it may have effects the statement text does
+	 * not show, such as incrementing a counter, so its output must not be
+	 * replayed. Only names outside the built-in symbols are looked up.
+	 */
+	private boolean runsUserCode(String query) throws MathLinkException {
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name : new Statement(query).getReads()) {
+			if (!baseSymbols.contains(name))
+				names.add(name);
+		}
+		return !names.isEmpty() && !withCode(toList(names)).isEmpty();
+	}
+	
+	/**
+	 * Returns those of the symbols named by a list expression that have
+	 * definitions with code in the session's kernel.
+	 */
+	private HashSet<String> withCode(String names) throws MathLinkException {
+		return toNames(kernel.evaluate("Select[" + names + ", " + HAS_CODE + "]"));
+	}
+	
+	private static HashSet<String> toNames(Expr list) {
+		HashSet<String> names = new HashSet<String>();
+		for (int j = 1; j <= list.length(); j++) {
+			try {
+				names.add(list.part(j).asString());
+			} catch (ExprFormatException e) {
+				// Not a name
+			}
+		}
+		return names;
+	}
+	
+	private static String toList(Collection<String> names) {
+		StringBuilder result = new StringBuilder("{");
+		for (String name : names) {
+			if (result.length() > 1)
+				result.append(", ");
+			result.append('"').append(name).append('"');
+		}
+		return result.append("}").toString();
+	}
+	
+	/**
+	 * Collects the current definitions of the user symbols a statement
+	 * reads, asking the session's kernel only for those not captured since
+	 * the last definition was made.
+	 */
+	private HashMap<String, Expr> snapshot(Statement statement, HashSet<String> userSymbols, 
+			HashMap<String, Expr> snapshots) throws MathLinkException {
+		HashMap<String, Expr> definitions = new HashMap<String, Expr>();
+		ArrayList<String> missing = new ArrayList<String>();
+		
+		for (String name : statement.getReads()) {
+			if (!userSymbols.contains(name))
+				continue;
+			
+			Expr definition = snapshots.get(name);
+			if (definition != null)
+				definitions.put(name, definition);
+			else
+				missing.add(name);
+		}
+		
+		if (missing.isEmpty())
+			return definitions;
+		
+		StringBuilder query = new StringBuilder("{");
+		for (int j = 0; j < missing.size(); j++) {
+			if (j > 0)
+				query.append(", ");
+			query.append("Language`ExtendedFullDefinition[").append(missing.get(j)).append("]");
+		}
+		query.append("}");
+		
+		Expr captured = kernel.evaluate(query.toString());
+		if (captured.length() != missing.size()) {
+			Log.warn("Failed to capture definitions of " + missing + " for Session ID: " + sessionId);
+			return definitions;
+		}
+		
+		for (int j = 0; j < missing.size(); j++) {
+			snapshots.put(missing.get(j), captured.part(j + 1));
+			definitions.put(missing.get(j), captured.part(j + 1));
+		}
+		return definitions;
+	}
+	
+	private static KernelGroup.Output await(Future<KernelGroup.Output> output) throws MathLinkException, IOException {
+		try {
+			return output.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a helper kernel");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof MathLinkException)
+				throw (MathLinkException)cause;
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+	
+	/**
+	 * Adds and streams the collected output of a document statement as the
+	 * next cell. Aborted statements stay stale for the next run.
+	 */
+	private void commit(int index, List<String> statements, KernelGroup.Output output, String memoKey) 
+			throws IOException {
+		int aborts = abortCount;
+		commit(statements.get(index), output, memoKey);
+		if (abortCount == aborts)
+			document.evaluated(index);
+	}
+	
+	private void commit(String query, KernelGroup.Output output, String memoKey) throws IOException {
+		stream("<div id='resource_" + currentCount + "' class='cellgroup'>");
+		
+		Resource input = new Resource(query);
+		add(input);
+		stream(input.render(true));
+		
+		for (int i = 0; i < output.getPacketCount(); i++)
+			packetArrived(output.getPacketType(i), output.getPacketText(i));
+		addResult(output.getResult(), output.getImage());
+		
+		if (output.getResult().equals(ABORTED))
+			forgetEpoch(query);
+		else if (memoKey != null)
+			memoize(memoKey);
+		
+		finish(input, output.getTime());
+	}
+	
+	/**
+	 * Evaluates statements back to back, optionally stopping after the first
+	 * one that produced a message or was aborted. An abort request always
+	 * ends the batch. A kernel link failure ends the batch and is reported
+	 * in the result.
+	 */
+	public BatchResult evaluateBatch(List<String> statements, boolean[] images, boolean stopOnMessage, 
+			Session session) throws IOException {
+		BatchResult result = new BatchResult(statements.size());
+		abortRequested = false;
+		
+		for (int i = 0; i < statements.size(); i++) {
+			int messages = messageCount;
+			int aborts = abortCount;
+			long mark = System.currentTimeMillis();
+			
+			try {
+				document.invalidate(statements.get(i));
+				evaluateCell(statements.get(i), images[i], session);
+			} catch (MathLinkException e) {
+				result.fail(System.currentTimeMillis() - mark, e);
+				break;
+			}
+			
+			String status = BatchResult.OKAY;
+			if (abortCount != aborts)
+				status = BatchResult.ABORTED;
+			else if (messageCount != messages)
+				status = BatchResult.MESSAGE;
+			result.record(System.currentTimeMillis() - mark, status);
+			
+			if ((abortRequested || (stopOnMessage && status != BatchResult.OKAY)) && i + 1 < statements.size()) {
+				result.stop();
+				break;
+			}
+		}
+		
+		return result;
+	}
+	
+	private void evaluateCell(String query, boolean evalToImage, Session session) 
+			throws MathLinkException, IOException {
 		long mark = System.currentTimeMillis();
 		this.session = session;
 		
-		session.sendInline("<div id='resource_" + currentCount + "' class='cellgroup'>");
+		// Only statements without side effects are looked up; the others
+		// move the session on to a new kernel-state epoch
+		String memoKey = null;
+		if (memo != null) {
+			String normalized = MemoCache.normalize(query);
+			int effect = MemoCache.classify(normalized);
+			if (effect == MemoCache.PURE && runsUserCode(query))
+				effect = MemoCache.VOLATILE;
+			if (effect == MemoCache.PURE) {
+				memoKey = MemoCache.key(memoEpoch, evalToImage, normalized);
+			} else {
+				memo.bypass();
+				memoEpoch = MemoCache.advance(memoEpoch, normalized, effect);
+			}
+		}
+		
+		stream("<div id='resource_" + currentCount + "' class='cellgroup'>");
 		
 		// Log the input
 		Resource input = new Resource(query); 
-		resources.add(input);
-		session.sendInline(input.render(true));
+		add(input);
+		stream(input.render(true));
 		
-		kernelLink.evaluate(query);
-		kernelLink.waitForAnswer();
-		Expr result = kernelLink.getExpr();
-		
-		if (!result.equals(NULLEXPR)) {
-			// Log the output as fullform text
-			Resource textResource = new Resource(MathLink.RETURNPKT, result);
-			byte[] data = null;
+		Journal.Cell cached = memoKey != null ? memo.get(memoKey) : null;
+		if (cached != null && adoptImages(cached)) {
+			replay(cached);
+		} else {
+			if (cached != null)
+				memo.unhit();
 			
-			if (evalToImage || textResource.isGraphics())
-				data = kernelLink.evaluateToImage(result, 0, 0);
+			symbolsDirty = true;
+			long evaluateMark = System.nanoTime();
+			Expr result = kernel.evaluate(query);
+			Metrics.record(Metrics.KERNEL_EVALUATE, Metrics.since(evaluateMark));
 			
-			if (data != null) {
-				Resource graphicsResource = new Resource(MathLink.DISPLAYPKT, data);
-				resources.add(graphicsResource);
-				session.sendInline(graphicsResource.render(true));
-				textResource.subdue();
-				session.sendInline(textResource.render(false));
-			} else {
-				session.sendInline(textResource.render(true));
+			byte[] data = null;
+			if (!result.equals(NULLEXPR) && (evalToImage || isGraphics(result))) {
+				long imageMark = System.nanoTime();
+				data = kernel.evaluateToImage(result);
+				Metrics.record(Metrics.KERNEL_IMAGE, Metrics.since(imageMark));
 			}
+			addResult(result, data);
 			
-			resources.add(textResource);
+			// An aborted evaluation says nothing about the statement
+			if (result.equals(ABORTED))
+				forgetEpoch(query);
+			else if (memoKey != null)
+				memoize(memoKey);
 		}
 		
-		// Done with this. Move on...
-		kernelLink.newPacket();
+		finish(input, System.currentTimeMillis() - mark);
+	}
+	
+	/**
+	 * Adds and streams the result of an evaluation, as an image followed by
+	 * its subdued text if it was rendered.
+	 */
+	private void addResult(Expr result, byte[] data) throws IOException {
+		if (result.equals(NULLEXPR))
+			return;
+		
+		// Log the output as fullform text, shortened if it is large
+		Resource textResource = new Resource(MathLink.RETURNPKT, result);
+		textResource.elide();
+		
+		if (data != null) {
+			Resource graphicsResource = new Resource(MathLink.DISPLAYPKT, data);
+			add(graphicsResource);
+			stream(graphicsResource.render(true));
+			textResource.subdue();
+			stream(textResource.render(false));
+		} else {
+			stream(textResource.render(true));
+		}
+		
+		add(textResource);
+		
+		// The preview is out already; the full text is written synchronously
+		// here, so the cell only closes once fetch can serve it
+		if (textResource.elided)
+			writeOutput(textResource);
+	}
+	
+	private void writeOutput(Resource resource) {
+		File file = getOutputFile(resource.getCount());
+		long mark = System.nanoTime();
+		
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Session.UTF8));
+			try {
+				resource.writeValue(out);
+			} finally {
+				out.close();
+			}
+			lastElided = resource.getCount();
+		} catch (IOException e) {
+			Log.warn("Failed to write output " + resource.getCount() + " of Session ID: " + sessionId + " (" + e.getMessage() + ")");
+			file.delete();
+		}
+		
+		Metrics.record(Metrics.OUTPUT_WRITE, Metrics.since(mark));
+	}
+	
+	/**
+	 * Closes the current cell group, recording its evaluation time.
+	 */
+	private void finish(Resource input, long time) {
 		currentCount++;
 		
-		input.setTime(System.currentTimeMillis() - mark);
-		session.sendInline("<div class='time'>" + commify(input.getTime()) + "ms</div></div>");
+		input.setTime(time);
+		touch(input.getCount());
+		journal(input.getCount());
+		enforceBudget();
+		String end = "<div class='time'>" + commify(input.getTime()) + "ms</div></div>";
+		session.sendInline(end);
+		if (feed != null)
+			feed.publish(LiveFeed.CELL, end);
+	}
+	
+	/**
+	 * Drops the rendered cell groups so that the next render starts from
+	 * scratch. Used by the render benchmarks.
+	 */
+	void clearRenderCache() {
+		renderCache.clear();
+		renderCacheChars = 0;
 	}
 	
-	public String render() {
+	/**
+	 * Renders the whole history. Cell groups are rendered once and served
+	 * from the render cache afterwards; only the group of an evaluation that
+	 * is still in progress is rendered from scratch each time.
+	 */
+	public String render() throws IOException {
+		return render(-1);
+	}
+	
+	/**
+	 * Renders only the cell groups added or changed after the given version.
+	 */
+	public String render(long since) throws IOException {
+		long mark = System.nanoTime();
+		StringBuilder content = new StringBuilder();
+		
+		// Spilled groups are always older than the ones still in memory
+		for (HistorySpill.Group group : spill.getGroups()) {
+			Long groupVersion = groupVersions.get(group.getCount());
+			if (groupVersion != null && groupVersion <= since)
+				continue;
+			
+			for (String image : group.getImages())
+				imageStore.touch(image);
+			content.append(spill.read(group));
+		}
+		
+		int start = 0;
+		while (start < resources.size()) {
+			int count = resources.get(start).getCount();
+			int end = start + 1;
+			while (end < resources.size() && resources.get(end).getCount() == count)
+				end++;
+			
+			Long groupVersion = groupVersions.get(count);
+			if (groupVersion != null && groupVersion <= since) {
+				start = end;
+				continue;
+			}
+			
+			for (int i = start; i < end; i++) {
+				if (resources.get(i).type == MathLink.DISPLAYPKT)
+					imageStore.touch(resources.get(i).value);
+			}
+			
+			String html = renderCache.get(count);
+			if (html == null) {
+				html = renderGroup(count, start, end);
+				if (count < currentCount) {
+					renderCache.put(count, html);
+					renderCacheChars += html.length();
+				}
+			}
+			
+			content.append(html);
+			start = end;
+		}
+		
+		Metrics.record(Metrics.RENDER_TIME, Metrics.since(mark));
+		Metrics.record(Metrics.RENDER_CHARS, content.length());
+		return content.toString();
+	}
+	
+	private String renderGroup(int count, int start, int end) {
 		boolean renderedDisplay = false;
-		int currentCount = -1;
 		long executeTime = -1;
 		StringBuilder content = new StringBuilder();
 		
-		for (Resource resource : resources) {
-			if (currentCount == -1) {
-				executeTime = -1;
-				currentCount = resource.getCount();
-				content.append("<div id='resource_" + currentCount + "' class='cellgroup'>");
-			}
+		content.append("<div id='resource_" + count + "' class='cellgroup'>");
+		
+		for (int i = start; i < end; i++) {
+			Resource resource = resources.get(i);
 			
 			if (resource.getTime() != -1)
 				executeTime = resource.getTime();
-
-			if (resource.getCount() != currentCount) {
-				if (executeTime != -1)
-					content.append("<div class='time'>" + commify(executeTime) + "ms</div>");
-				
-				content.append("</div>");
-				currentCount = resource.getCount();
-				content.append("<div id='resource_" + currentCount + "' class='cellgroup'>");
-				renderedDisplay = false;
-			}
 			
 			if (resource.type == MathLink.DISPLAYPKT) {
 				renderedDisplay = true;
-				content.append(resource.render(true));
+				resource.render(true, content);
 			} else if (resource.type == MathLink.RETURNPKT) {
 				if (!renderedDisplay)
-					content.append(resource.render(true));
+					resource.render(true, content);
 			} else {
-				content.append(resource.render(true));
+				resource.render(true, content);
 			}
 		}
 		
-		if (currentCount != -1) {
-			if (executeTime != -1)
-				content.append("<div class='time'>" + commify(executeTime) + "ms</div>");
-			content.append("</div>");
-		}
+		if (executeTime != -1)
+			content.append("<div class='time'>" + commify(executeTime) + "ms</div>");
+		content.append("</div>");
 		
 		return content.toString();
 	}
 	
+	/**
+	 * True if a result is best shown as an image.
+	 */
+	static boolean isGraphics(Expr expr) {
+		Expr head = expr.head();
+		if (head.toString().equals("List")) {
+			if (expr.length() == 0)
+				return false;
+			else
+				head = expr.part(1).head();
+		}
+		
+		if (head.toString().equals("InputForm"))
+			return false;
+		
+		if (head.toString().equals("Graphics"))
+			return true;
+		
+		if (head.toString().equals("GraphicsRow"))
+			return true;
+		
+		if (head.toString().equals("Graphics3D"))
+			return true;
+		
+		if (head.toString().equals("Labeled"))
+			return true;
+		
+		if (head.toString().equals("Grid"))
+		  return true;
+		
+		if (head.toString().equals("Row"))
+		  return true;
+		
+		if (head.toString().equals("Column"))
+		  return true;
+		
+		if (head.toString().endsWith("Form"))
+			return true;
+		
+		return false;
+	}
+	
 	class Resource {
 		private int type;
 		private String value;
@@ -256,6 +1229,10 @@ public class Resources implements PacketListener {
 		private boolean subdue;
 		private Expr expr;
 		private long time;
+		private long size;
+		private boolean elided;
+		private String full;
+		private long fullChars;
 		
 		public Resource(String value) {
 			this.type = -1;
@@ -286,15 +1263,11 @@ public class Resources implements PacketListener {
 		
 		public Resource(int type, byte[] data) throws IOException {
 			this.type = type;
-			this.value = UUID.randomUUID().toString() + ".gif";
+			this.value = imageStore.put(sessionId, data);
 			this.count = currentCount;
 			this.subdue = false;
 			this.expr = null;
 			this.time = -1;
-			
-			FileOutputStream fp = new FileOutputStream(getFilePointer());
-			fp.write(data);
-			fp.close();
 		}
 		
 		public void setTime(long time) {
@@ -307,6 +1280,7 @@ public class Resources implements PacketListener {
 		
 		public void subdue() {
 			subdue = true;
+			invalidate(count);
 		}
 		
 		public int getType() {
@@ -317,71 +1291,87 @@ public class Resources implements PacketListener {
 			return value == null ? expr.toString() : value;
 		}
 		
-		public String getHtmlEscapedValue() {
-		  return getHtmlEscapedValue(false);
-		}
-		
-		public String getHtmlEscapedValue(boolean autoTrim) {
-			StringBuilder sb = new StringBuilder();
-			String base = value == null ? expr.toString() : value;
+		/**
+		 * Shortens the text of a large result to its first and last elements,
+		 * or characters, around a <<n>> skeleton as Short does. Lists are
+		 * previewed without formatting the elements in between.
+		 */
+		public void elide() {
+			if (expr.listQ() && expr.length() > previewElements) {
+				int length = expr.length();
+				int keep = Math.max(previewElements / 2, 1);
+				StringBuilder preview = new StringBuilder("{");
+				for (int i = 1; i <= keep; i++)
+					preview.append(expr.part(i).toString()).append(", ");
+				int sampled = preview.length();
+				preview.append("<<").append(length - 2 * keep).append(">>");
+				for (int i = length - keep + 1; i <= length; i++)
+					preview.append(", ").append(expr.part(i).toString());
+				preview.append("}");
+				sampled += preview.length() - preview.indexOf(">>") - 2;
+				
+				// The elements in between are extrapolated from the sampled ones
+				value = clip(preview.toString());
+				fullChars = (long)sampled * length / (2 * keep);
+				elided = true;
+				return;
+			}
 			
-			if (autoTrim) {
-	      base = base.replaceAll("\\\\\\n\\s\\n>\\s\\s", "");
+			// Anything else has to be formatted whole once; it is kept until
+			// the full text is written
+			String text = expr.toString();
+			if (text.length() > previewChars) {
+				value = clip(text);
+				full = text;
+				fullChars = text.length();
+				elided = true;
+			} else {
+				value = text;
 			}
+		}
+		
+		private String clip(String text) {
+			if (text.length() <= previewChars)
+				return text;
 			
-			for (int i = 0; i < base.length(); i++) {
-				char c = base.charAt(i);
-				switch (c) {
-					case '<': sb.append("&lt;"); break;
-					case '>': sb.append("&gt;"); break;
-					case '&': sb.append("&amp;"); break;
-					case '"': sb.append("&quot;"); break;
-					case '': sb.append("&agrave;"); break;
-					case '': sb.append("&Agrave;"); break;
-					case '': sb.append("&acirc;"); break;
-					case '': sb.append("&Acirc;"); break;
-					case '': sb.append("&auml;"); break;
-					case '': sb.append("&Auml;"); break;
-					case '': sb.append("&aring;"); break;
-					case '': sb.append("&Aring;"); break;
-					case '': sb.append("&aelig;"); break;
-					case '': sb.append("&AElig;"); break;
-					case '': sb.append("&ccedil;"); break;
-					case '': sb.append("&Ccedil;"); break;
-					case '': sb.append("&eacute;"); break;
-					case '': sb.append("&Eacute;"); break;
-					case '': sb.append("&egrave;"); break;
-					case '': sb.append("&Egrave;"); break;
-					case '': sb.append("&ecirc;"); break;
-					case '': sb.append("&Ecirc;"); break;
-					case '': sb.append("&euml;"); break;
-					case '': sb.append("&Euml;"); break;
-					case '': sb.append("&iuml;"); break;
-					case '': sb.append("&Iuml;"); break;
-					case '': sb.append("&ocirc;"); break;
-					case '': sb.append("&Ocirc;"); break;
-					case '': sb.append("&ouml;"); break;
-					case '': sb.append("&Ouml;"); break;
-					case '': sb.append("&oslash;"); break;
-					case '': sb.append("&Oslash;"); break;
-					case '': sb.append("&szlig;"); break;
-					case '': sb.append("&ugrave;"); break;
-					case '': sb.append("&Ugrave;"); break;         
-					case '': sb.append("&ucirc;"); break;         
-					case '': sb.append("&Ucirc;"); break;
-					case '': sb.append("&uuml;"); break;
-					case '': sb.append("&Uuml;"); break;
-					case '': sb.append("&reg;"); break;         
-					case '': sb.append("&copy;"); break;   
-					case '': sb.append("&euro;"); break;
-					// be carefull with this one (non-breaking whitee space)
-					// case ' ': sb.append("&nbsp;"); break;
-					// case '\n': sb.append("<br />"); break;
-					default:  sb.append(c); break;
+			int keep = previewChars / 2;
+			return text.substring(0, keep) + " <<" + commify(text.length() - 2 * keep) + " characters>> " + 
+					text.substring(text.length() - keep);
+		}
+		
+		/**
+		 * Writes the full text of the result, element by element for lists.
+		 */
+		public void writeValue(Writer out) throws IOException {
+			if (full != null) {
+				out.write(full);
+				full = null;
+			} else if (expr.listQ()) {
+				out.write("{");
+				for (int i = 1; i <= expr.length(); i++) {
+					if (i > 1)
+						out.write(", ");
+					out.write(expr.part(i).toString());
 				}
+				out.write("}");
+			} else {
+				out.write(getValue());
 			}
-			
-			return sb.toString();
+		}
+		
+		public String getHtmlEscapedValue() {
+		  return getHtmlEscapedValue(false);
+		}
+		
+		public String getHtmlEscapedValue(boolean autoTrim) {
+			return HtmlEscaper.escape(getValue(), autoTrim);
+		}
+		
+		/**
+		 * Escapes the value straight into the given builder.
+		 */
+		public void appendHtmlEscapedValue(StringBuilder sb, boolean autoTrim) {
+			HtmlEscaper.escape(getValue(), autoTrim, sb);
 		}
 		
 		public int getCount() {
@@ -389,7 +1379,7 @@ public class Resources implements PacketListener {
 		}
 		
 		public File getFilePointer() {
-			return getNamedFile(value);
+			return imageStore.getFile(value);
 		}
 		
 		public boolean isGraphics() {
@@ -397,84 +1387,70 @@ public class Resources implements PacketListener {
 				throw new RuntimeException("This method can only be called on RETURNPKT resource.");
 			}
 			
-			Expr head = expr.head();
-			if (head.toString().equals("List")) {
-				if (expr.length() == 0)
-					return false;
-				else
-					head = expr.part(1).head();
-			}
-
-			if (head.toString().equals("InputForm"))
-				return false;
-			
-			if (head.toString().equals("Graphics"))
-				return true;
-			
-			if (head.toString().equals("GraphicsRow"))
-				return true;
-			
-			if (head.toString().equals("Graphics3D"))
-				return true;
-			
-			if (head.toString().equals("Labeled"))
-				return true;
-			
-			if (head.toString().equals("Grid"))
-			  return true;
-			
-			if (head.toString().equals("Row"))
-			  return true;
-			
-			if (head.toString().equals("Column"))
-			  return true;
-			
-			if (head.toString().endsWith("Form"))
-				return true;
-			
-			return false;
+			return Resources.isGraphics(expr);
 		}
 		
 		public void release() {
 			if (type == MathLink.DISPLAYPKT) {
-				File file = getFilePointer();
-				if (file.exists()) file.delete();
+				imageStore.release(sessionId, value);
 			}
 		}
 		
 		public String render(boolean visible) {
 			StringBuilder result = new StringBuilder();
+			render(visible, result);
+			return result.toString();
+		}
+		
+		public void render(boolean visible, StringBuilder result) {
+			int mark = result.length();
+			render(visible, result, mark);
 			
+			// Estimate the heap held by this resource from its first rendering;
+			// a shortened result still holds the whole expression
+			if (size == 0) {
+				size = 2L * (result.length() - mark + fullChars);
+				heapBytes += size;
+			}
+		}
+		
+		private void render(boolean visible, StringBuilder result, int mark) {
 			String style = "";
 			if (!visible)
 				style = " style='display:none;'";
 			
 			if (type == -1) {
-				result.append("<div class='cell input'" + style + ">");
-				result.append("  <div class='margin'>In[" + count + "] := </div>");
-				result.append("  <div class='content'>" + getHtmlEscapedValue() + "</div>");
+				result.append("<div class='cell input'").append(style).append(">");
+				result.append("  <div class='margin'>In[").append(count).append("] := </div>");
+				result.append("  <div class='content'>");
+				appendHtmlEscapedValue(result, false);
+				result.append("</div>");
 				result.append("</div>");
 			}
 			
 			if (type == MathLink.TEXTPKT) {
-				result.append("<div class='cell text'" + style + ">");
-				result.append("  <div class='margin'>Msg[" + count + "] := </div>");
-				result.append("  <div class='content'>" + getHtmlEscapedValue(true) + "</div>");
+				result.append("<div class='cell text'").append(style).append(">");
+				result.append("  <div class='margin'>Msg[").append(count).append("] := </div>");
+				result.append("  <div class='content'>");
+				appendHtmlEscapedValue(result, true);
+				result.append("</div>");
 				result.append("</div>");
 			}
 			
 			if (type == MathLink.MESSAGEPKT) {
-				result.append("<div class='cell message'" + style + ">");
-				result.append("  <div class='margin'>Msg[" + count + "] := </div>");
-				result.append("  <div class='content'>" + getHtmlEscapedValue(true) + "</div>");
+				result.append("<div class='cell message'").append(style).append(">");
+				result.append("  <div class='margin'>Msg[").append(count).append("] := </div>");
+				result.append("  <div class='content'>");
+				appendHtmlEscapedValue(result, true);
+				result.append("</div>");
 				result.append("</div>");
 			}
 			
 			if (type == MathLink.DISPLAYPKT) {
-				result.append("<div class='cell display'" + style + ">");
-				result.append("  <div class='margin'>Out[" + count + "] := </div>");
+				result.append("<div class='cell display'").append(style).append(">");
+				result.append("  <div class='margin'>Out[").append(count).append("] := </div>");
 				result.append("  <div class='content'>");
-				result.append("    <img src='file://" + getFilePointer() + "' onclick='toggle(" + count + ")' />");
+				result.append("    <img src='").append(imageStore.getUrl(value)).append("' onclick='toggle(").append(count).append(")' />");
 				result.append("  </div>");
 				result.append("</div>");
 			}
@@ -484,58 +1460,21 @@ public class Resources implements PacketListener {
 				if (subdue)
 					cls = " subdue";
 				
-				result.append("<div class='cell return" + cls + "'" + style + ">");
-				result.append("  <div class='margin'>Out[" + count + "] := </div>");
-				result.append("  <div class='content'>" + getHtmlEscapedValue() + "</div>");
+				result.append("<div class='cell return").append(cls).append("'").append(style).append(">");
+				result.append("  <div class='margin'>Out[").append(count).append("] := </div>");
+				result.append("  <div class='content'>");
+				appendHtmlEscapedValue(result, false);
+				if (elided)
+					result.append("<div class='elided'>Shortened, use Show Full Output for the complete text</div>");
+				result.append("</div>");
 				result.append("</div>");
-			}
-			
-			return result.toString();
-		}
-	}
-
-	@Override
-  public boolean packetArrived(PacketArrivedEvent evt) throws MathLinkException {
-		KernelLink ml = (KernelLink)evt.getSource();
-		
-		if (evt.getPktType() == MathLink.TEXTPKT) {
-			Resource resource = new Resource(evt.getPktType(), ml.getString()); 
-			resources.add(resource);
-			session.sendInline(resource.render(true));
-		}
-		
-		if (evt.getPktType() == MathLink.MESSAGEPKT) {
-			Resource resource = new Resource(evt.getPktType(), ml.getString());
-			resources.add(resource);
-			session.sendInline(resource.render(true));
-		}
-		
-		for (Field field : MathLink.class.getFields()) {
-			if (field.getName().endsWith("PKT")) {
-				try {
-					if (evt.getPktType() == field.getInt(field)) {
-						System.out.println("Received Mathematica Packet: " + field.getName() + " (" + evt.getPktType() + ")");
-					}
-				} catch (IllegalArgumentException e) {
-					System.out.println(e.getMessage());
-				} catch (IllegalAccessException e) {
-					System.out.println(e.getMessage());
-				}
 			}
 		}
-		
-		return true;
 	}
 	
-	public static void main(String args[]) {
-	  String data = "\"user_count_tablestats\" -> {\"chart\" -> \"user_count_tablestats.gif\", \"colors\"\\\n" +
-	                " \n" + 
-	                ">   -> {\"e63221\", \"5b0e04\", \"b04e00\", \"fac742\", \"a1a13f\", \"527b28\", \"4e977d\",\\\n" +
-                  " \n" + 
-                  ">   \"316f74\", \"549bbe\", \"104283\"}, \"labels\" -> {\"user base size\", \"verified\\\n" +
-                  " \n" + 
-                  ">   email\", \"trial users\"}}";
-	  data = data.replaceAll("\\\\\\n\\s\\n>\\s\\s", "");
-	  System.out.println(data);
+	public void packetArrived(int type, String text) {
+		Resource resource = new Resource(type, text);
+		add(resource);
+		stream(resource.render(true));
 	}
 }
@@ -1,160 +1,502 @@
 package com.shadanan.textmatejlink;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.wolfram.jlink.MathLinkException;
 
 public class Server extends Thread {
+	private static final long PID_CHECK_INTERVAL = 1000;
+	private static final String PORT_FILE = "tmjlink.port";
+	
 	private String cacheFolder = null;
 	private int textMatePid = -1;
-	private String[] mlargs = null;
-	private boolean running = false;
-	private Object sessionsLock = null;
-	private ArrayList<Session> sessions = null;
-	private HashMap<String, Resources> resourcesMap = null;
+	private KernelPool kernelPool = null;
+	private SymbolIndex baseSymbols = null;
+	private ImageStore imageStore = null;
+	private volatile boolean running = false;
+	private volatile int port = 0;
+	private Set<Session> sessions = null;
+	private SessionRegistry registry = null;
+	
+	private Selector selector = null;
+	private ExecutorService workers = null;
+	private ScheduledExecutorService timer = null;
+	private long deadline = 0;
+	private ConcurrentLinkedQueue<Session> interestUpdates = null;
+	private MemoCache memo = null;
+	private HttpServer http = null;
 	
 	public Server(String cacheFolder, int textMatePid, String[] mlargs) {
 		this.cacheFolder = cacheFolder;
 		this.textMatePid = textMatePid;
-		this.mlargs = mlargs;
+		String backend = System.getProperty("tmjlink.kernel.backend", KernelPool.JLINK);
+		this.kernelPool = new KernelPool(backend, mlargs, Integer.getInteger("tmjlink.kernel.spares", 1));
 		this.running = true;
 		
-		resourcesMap = new HashMap<String, Resources>();
-		sessions = new ArrayList<Session>();
-		sessionsLock = new Object();
+		sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+		registry = new SessionRegistry(new SessionRegistry.Factory() {
+			public Resources create(String sessionId) throws MathLinkException, IOException {
+				Resources resources = new Resources(sessionId, Server.this.cacheFolder, kernelPool, baseSymbols, imageStore, memo);
+				if (http != null)
+					resources.setFeed(http.feedFor(sessionId));
+				return resources;
+			}
+		});
+		interestUpdates = new ConcurrentLinkedQueue<Session>();
+		workers = Executors.newCachedThreadPool(new WorkerFactory());
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "tmjlink-deadlines");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		deadline = Long.getLong("tmjlink.evaluation.deadline", 0);
 		
-		System.out.println("TextMate PID: " + textMatePid);
+		Log.info("TextMate PID: " + textMatePid);
+		Log.info("Kernel backend: " + backend);
+		baseSymbols = loadSymbols(System.getProperty("tmjlink.symbols"));
+		imageStore = new ImageStore(new File(cacheFolder, "images"), 
+				Long.getLong("tmjlink.images.quota", 512L * 1024 * 1024), 
+				Long.getLong("tmjlink.images.sessionQuota", 128L * 1024 * 1024));
+		if (Boolean.getBoolean("tmjlink.memo"))
+			memo = new MemoCache(Integer.getInteger("tmjlink.memo.entries", 1000));
+		registerGauges();
+		Metrics.registerMBean();
+		kernelPool.replenish();
+	}
+	
+	private void registerGauges() {
+		Metrics.gauge("sessions.live", new Metrics.Gauge() {
+			public long getValue() {
+				return sessions.size();
+			}
+		});
+		Metrics.gauge("kernels.active", new Metrics.Gauge() {
+			public long getValue() {
+				return registry.size();
+			}
+		});
+		Metrics.gauge("kernels.idle", new Metrics.Gauge() {
+			public long getValue() {
+				return kernelPool.getIdleCount();
+			}
+		});
+		Metrics.gauge("resources.total", new Metrics.Gauge() {
+			public long getValue() {
+				long total = 0;
+				for (Resources resources : registry.getAll())
+					total += resources.getSize();
+				return total;
+			}
+		});
+		Metrics.gauge("resources.maxPerSession", new Metrics.Gauge() {
+			public long getValue() {
+				long max = 0;
+				for (Resources resources : registry.getAll())
+					max = Math.max(max, resources.getSize());
+				return max;
+			}
+		});
+		Metrics.gauge("images.bytes", new Metrics.Gauge() {
+			public long getValue() {
+				return imageStore.getBytes();
+			}
+		});
+		Metrics.gauge("images.hits", new Metrics.Gauge() {
+			public long getValue() {
+				return imageStore.getHits();
+			}
+		});
+		Metrics.gauge("images.misses", new Metrics.Gauge() {
+			public long getValue() {
+				return imageStore.getMisses();
+			}
+		});
+		Metrics.gauge("images.evictions", new Metrics.Gauge() {
+			public long getValue() {
+				return imageStore.getEvictions();
+			}
+		});
+		Metrics.gauge("kernels.pool.hits", new Metrics.Gauge() {
+			public long getValue() {
+				return kernelPool.getHits();
+			}
+		});
+		Metrics.gauge("kernels.pool.misses", new Metrics.Gauge() {
+			public long getValue() {
+				return kernelPool.getMisses();
+			}
+		});
+		
+		if (memo != null) {
+			Metrics.gauge("memo.hits", new Metrics.Gauge() {
+				public long getValue() {
+					return memo.getHits();
+				}
+			});
+			Metrics.gauge("memo.misses", new Metrics.Gauge() {
+				public long getValue() {
+					return memo.getMisses();
+				}
+			});
+			Metrics.gauge("memo.bypasses", new Metrics.Gauge() {
+				public long getValue() {
+					return memo.getBypasses();
+				}
+			});
+		}
 	}
 	
 	@Override
   public void run() {
+		ServerSocketChannel ssc = null;
+		
 		try {
-			ServerSocket ss = new ServerSocket(0);
-			ss.setSoTimeout(1000);
-			System.out.println("Server started on port: " + ss.getLocalPort());
+			selector = Selector.open();
+			ssc = ServerSocketChannel.open();
+			ssc.socket().bind(new InetSocketAddress(0));
+			ssc.configureBlocking(false);
+			ssc.register(selector, SelectionKey.OP_ACCEPT);
+			port = ssc.socket().getLocalPort();
+			Log.info("Server started on port: " + port);
+			startHttp();
+			announce(port);
 			
+			long lastPidCheck = 0;
 			while (running) {
 				try {
-					Process p = Runtime.getRuntime().exec("kill -0 " + this.textMatePid);
-					if (p.waitFor() != 0) {
-						System.out.println("TextMate's PID is gone: " + this.textMatePid);
-						running = false;
-						continue;
+					long now = System.currentTimeMillis();
+					if (now - lastPidCheck >= PID_CHECK_INTERVAL) {
+						lastPidCheck = now;
+						Process p = Runtime.getRuntime().exec("kill -0 " + this.textMatePid);
+						if (p.waitFor() != 0) {
+							Log.warn("TextMate's PID is gone: " + this.textMatePid);
+							running = false;
+							continue;
+						}
 					}
 					
-					Socket socket = ss.accept();
-					socket.setSoTimeout(1000);
+					selector.select(PID_CHECK_INTERVAL);
 					
-					System.out.println("Opening connection: " + socket.getRemoteSocketAddress());
-					Session session = new Session(this, socket);
-					session.start();
+					// Apply interest changes requested by worker threads
+					Session pending;
+					while ((pending = interestUpdates.poll()) != null) {
+						pending.updateInterest();
+					}
 					
-					synchronized (sessionsLock) {
-						sessions.add(session);
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						
+						if (!key.isValid())
+							continue;
+						
+						if (key.isAcceptable()) {
+							accept(ssc);
+							continue;
+						}
+						
+						// A misbehaving connection must not take the server down
+						Session session = (Session)key.attachment();
+						try {
+							if (key.isWritable())
+								session.handleWrite();
+							if (key.isValid() && key.isReadable())
+								session.handleRead();
+						} catch (RuntimeException e) {
+							Log.error(e);
+							session.close();
+						}
 					}
-				} catch (SocketTimeoutException te) {
-					continue;
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					Log.error(e);
 					running = false;
 					continue;
 				}
 			}
-			
-			ss.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error(e);
 			running = false;
 		}
 		
-		// Wait for all connections to end
+		if (ssc != null) {
+			try {
+				ssc.close();
+			} catch (IOException e) {
+				Log.error(e);
+			}
+		}
+		
+		// Wait for in-flight commands to finish, aborting evaluations that
+		// are still running after a check interval
+		workers.shutdown();
 		try {
-			synchronized (sessionsLock) {
-				while (sessions.size() > 0) {
-					System.out.println("Waiting for " + sessions.size() + " sessions to end...");
-					sessionsLock.wait();
-				}
-				System.out.println("All sessions closed.");
+			while (!workers.awaitTermination(PID_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+				Log.info("Waiting for " + sessions.size() + " sessions to end...");
+				for (Resources resources : registry.getAll())
+					resources.abort();
 			}
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Log.error(e);
+		}
+		
+		// Close remaining connections
+		for (Session session : new ArrayList<Session>(sessions)) {
+			session.close();
 		}
+		Log.info("All sessions closed.");
 		
-		// Close kernels and remove all resources
-		Iterator<Entry<String, Resources>> iterator = resourcesMap.entrySet().iterator();
-		while (iterator.hasNext()) {
-			Entry<String, Resources> entry = iterator.next();
-			System.out.println("Releasing Resources for Session ID: " + entry.getKey());
-			entry.getValue().close();
-			iterator.remove();
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				Log.error(e);
+			}
 		}
 		
-		System.out.println("Server shut down.");
+		// Close kernels, keeping the journals to restore from
+		timer.shutdownNow();
+		if (http != null)
+			http.shutdown();
+		registry.suspendAll();
+		kernelPool.close();
+		imageStore.close();
+		if (memo != null)
+			memo.printStatus();
+		
+		new File(cacheFolder, PORT_FILE).delete();
+		Log.info("Server shut down.");
+		Log.flush();
+	}
+	
+	/**
+	 * Starts the HTTP server unless tmjlink.http.port is -1. Images are
+	 * referred to by file URL if it is disabled or can't bind.
+	 */
+	private void startHttp() {
+		int httpPort = Integer.getInteger("tmjlink.http.port", 0);
+		if (httpPort < 0)
+			return;
+		
+		String web = System.getProperty("tmjlink.web");
+		http = new HttpServer(this, imageStore, web == null ? null : new File(web), 
+				System.getProperty("tmjlink.http.address", "127.0.0.1"), httpPort);
+		try {
+			http.bind();
+		} catch (IOException e) {
+			Log.warn("Could not start HTTP server on port " + httpPort + " (" + e.getMessage() + ")");
+			http = null;
+			return;
+		}
+		
+		imageStore.setBaseUrl(http.getUrl());
+		http.start();
+	}
+	
+	/**
+	 * Writes the port to tmjlink.port in the cache folder, which is how
+	 * clients learn that the server is ready, whatever the log level. The
+	 * file is renamed into place so it is never read half written.
+	 */
+	private void announce(int port) {
+		File file = new File(cacheFolder, PORT_FILE);
+		File temp = new File(cacheFolder, PORT_FILE + ".tmp");
+		
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write((port + "\n").getBytes(Session.UTF8));
+			} finally {
+				out.close();
+			}
+			
+			if (!temp.renameTo(file))
+				Log.error("Could not announce port in: " + file);
+		} catch (IOException e) {
+			Log.error("Could not announce port in: " + file + " (" + e.getMessage() + ")");
+		}
+	}
+	
+	private void accept(ServerSocketChannel ssc) throws IOException {
+		SocketChannel channel = ssc.accept();
+		if (channel == null)
+			return;
+		
+		channel.configureBlocking(false);
+		Log.info("Opening connection: " + channel.socket().getRemoteSocketAddress());
+		
+		Session session = new Session(this, channel);
+		session.register(selector);
+		
+		sessions.add(session);
+		
+		session.start();
+	}
+	
+	private static SymbolIndex loadSymbols(String path) {
+		if (path == null)
+			return SymbolIndex.EMPTY;
+		
+		try {
+			SymbolIndex index = SymbolIndex.load(new File(path));
+			Log.info("Loaded " + index.size() + " symbols from: " + path);
+			return index;
+		} catch (IOException e) {
+			Log.warn("Could not load symbols from: " + path + " (" + e.getMessage() + ")");
+			return SymbolIndex.EMPTY;
+		}
 	}
 	
 	public boolean isRunning() {
 		return running;
 	}
 	
+	/**
+	 * The port the server listens on, or 0 until it has started.
+	 */
+	public int getPort() {
+		return port;
+	}
+	
 	public void shutdown() {
-		System.out.println("Server shutting down...");
+		Log.info("Server shutting down...");
 		running = false;
+		if (selector != null)
+			selector.wakeup();
 	}
 	
-	public void deleteSession(Session session) {
-		synchronized (sessionsLock) {
-			sessions.remove(session);
-			sessionsLock.notifyAll();
+	/**
+	 * Runs a task on the worker pool. Tasks submitted after shutdown are dropped.
+	 */
+	public boolean submit(Runnable task) {
+		try {
+			workers.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
 		}
 	}
 	
-	public Resources getResources(String sessionId) throws MathLinkException, IOException {
-		if (resourcesMap.get(sessionId) == null) {
-			System.out.println("Allocating Resources for Session ID: " + sessionId);
-			Resources resources = new Resources(sessionId, cacheFolder, mlargs);
-			synchronized (sessionsLock) {
-				resourcesMap.put(sessionId, resources);
-			}
+	/**
+	 * Runs a task after the given delay, unless cancelled first. Returns
+	 * null after shutdown.
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long millis) {
+		try {
+			return timer.schedule(task, millis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			return null;
 		}
-		
-		Resources resources = resourcesMap.get(sessionId);
-		return resources;
 	}
 	
+	/**
+	 * The default deadline of an evaluation request in milliseconds, 0 for
+	 * none.
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+	
+	/**
+	 * Asks the selector thread to re-evaluate a session's interest set, which
+	 * may only be changed safely from that thread.
+	 */
+	public void requestInterestUpdate(Session session) {
+		interestUpdates.add(session);
+		if (selector != null)
+			selector.wakeup();
+	}
+	
+	public void deleteSession(Session session) {
+		sessions.remove(session);
+	}
+	
+	/**
+	 * Returns the Resources of a session, creating them on first use. When
+	 * several connections ask for a new session at once, a single kernel is
+	 * launched for all of them.
+	 */
+	public Resources getResources(String sessionId) throws MathLinkException, IOException {
+		return registry.get(sessionId);
+	}
+	
+	/**
+	 * Returns the Resources of a session if they exist, without waiting for
+	 * the session's lock.
+	 */
+	public Resources findResources(String sessionId) {
+		return registry.find(sessionId);
+	}
+	
+	/**
+	 * Replaces the Resources of a session with new ones on a fresh kernel.
+	 */
 	public Resources newResources(String sessionId) throws MathLinkException, IOException {
-		Resources resources = resourcesMap.get(sessionId);
-		if (resources != null) {
-			System.out.println("Releasing Resources for Session ID: " + sessionId);
-			resources.close();
-			resourcesMap.remove(sessionId);
-		}
-		
-		System.out.println("Allocating Resources for Session ID: " + sessionId);
-		resources = new Resources(sessionId, cacheFolder, mlargs);
-		synchronized (sessionsLock) {
-			resourcesMap.put(sessionId, resources);
-		}
-		
-		return resources;
+		return registry.replace(sessionId);
+	}
+	
+	/**
+	 * The lock serializing the commands of all connections to a session.
+	 */
+	public Object lockFor(String sessionId) {
+		return registry.lockFor(sessionId);
 	}
 	
 	public void printStatus() {
-		System.out.println("==== Current Connections ====");
+		Log.info("==== Current Connections ====");
 		for (Session session : sessions) {
 			session.printStatus();
 		}
-		System.out.println("==== Allocated Resources ====");
-		for (Entry<String, Resources> entry : resourcesMap.entrySet()) {
-			System.out.println("Session ID: " + entry.getKey() + ", " + 
-					"Resource Count: " + entry.getValue().getSize());
+		Log.info("==== Allocated Resources ====");
+		for (Entry<String, Resources> entry : registry.snapshot().entrySet()) {
+			Log.info("Session ID: " + entry.getKey() + ", " + 
+					"Resource Count: " + entry.getValue().getSize() + ", " + 
+					"Render Cache: " + entry.getValue().getRenderCacheBytes() + " bytes, " + 
+					"History: " + entry.getValue().getHeapBytes() + " bytes, " + 
+					"Spilled: " + entry.getValue().getSpillBytes() + " bytes, " + 
+					"Journal: " + entry.getValue().getJournalBytes() + " bytes");
+		}
+		Log.info("==== Kernel Pool / Images ====");
+		kernelPool.printStatus();
+		imageStore.printStatus();
+		if (memo != null)
+			memo.printStatus();
+		Log.info("==== Metrics ====");
+		Metrics.printStatus();
+		Log.info("=============================");
+	}
+	
+	static class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "tmjlink-worker-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
 		}
-		System.out.println("=============================");
 	}
 }
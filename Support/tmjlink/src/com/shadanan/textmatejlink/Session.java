@@ -1,41 +1,114 @@
 package com.shadanan.textmatejlink;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.io.Reader;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 
 import com.wolfram.jlink.ExprFormatException;
 import com.wolfram.jlink.MathLinkException;
 
-public class Session extends Thread {
-	private Socket socket = null;
-	private PrintWriter out = null;
-	private InputStreamReader in = null;
+/**
+ * A single client connection. Bytes are read by the server's selector thread
+ * and parsed into commands, which are then run one at a time, in order, on
+ * the server's worker pool. Replies are written directly when the socket
+ * accepts them and queued for the selector thread otherwise.
+ * 
+ * Connections start in the line based text protocol (version 1). Sending
+ * "protocol 2" switches both directions to length prefixed frames: a 4 byte
+ * big-endian length followed by that many bytes of UTF-8. The first line of
+ * a frame is the command or reply, anything after the first newline is its
+ * payload, e.g. "execute\n1+1" or "inline 7\n<div>...</div>".
+ */
+public class Session {
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+	private static final int CHUNK_SIZE = 32 * 1024;
+	private static final int MAX_QUEUED_CHUNKS = 4;
+	private static final HashSet<String> COMMANDS = new HashSet<String>(Arrays.asList(
+			"quit", "sessid", "header", "clear", "reset", "suggest", "execute", "image", "intexec", 
+			"document", "execdoc", "stats", "abort", "fetch", "out"));
+	
+	private SocketChannel channel = null;
+	private SelectionKey key = null;
+	private SocketAddress remoteAddress = null;
+	private ByteBuffer in = null;
+	private LinkedList<ByteBuffer> out = null;
+	private LinkedList<Runnable> tasks = null;
+	private boolean scheduled = false;
+	private boolean closing = false;
+	private boolean closed = false;
 	
 	private Server server = null;
-	private boolean running = false;
-	private Resources resources = null;
+	private volatile boolean running = false;
+	private volatile Resources resources = null;
+	
+	private String pendingCommand = null;
+	private String pendingArgs = null;
+	private String pendingRequestId = null;
+	private int readsize = -1;
+	private int needed = 0;
+	private int inputVersion = 1;
+	private int outputVersion = 1;
+	private String requestId = null;
 	
-	public Session(Server server, Socket socket) {
+	public Session(Server server, SocketChannel channel) {
 		this.server = server;
-		this.socket = socket;
+		this.channel = channel;
+		this.remoteAddress = channel.socket().getRemoteSocketAddress();
 		this.running = true;
+		this.in = ByteBuffer.allocate(BUFFER_SIZE);
+		this.out = new LinkedList<ByteBuffer>();
+		this.tasks = new LinkedList<Runnable>();
+	}
+	
+	public void register(Selector selector) throws ClosedChannelException {
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+	
+	public void start() {
+		send("okay");
 	}
 	
 	public void printStatus() {
-		System.out.println("Connection: " + socket.getRemoteSocketAddress());
+		Log.info("Connection: " + remoteAddress);
 		if (resources != null) {
-			System.out.println("  Associated with Session ID: " + resources.getSessionId());
+			Log.info("  Associated with Session ID: " + resources.getSessionId());
 		}
 	}
 	
 	public void close() {
+		synchronized (out) {
+			if (closed) return;
+			closed = true;
+			out.clear();
+			out.notifyAll();
+		}
+		
+		Log.info("Closing connection: " + remoteAddress);
+		running = false;
+		
+		if (key != null) key.cancel();
 		try {
-			socket.close();
+			channel.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error(e);
 		}
 		
 		server.deleteSession(this);
@@ -43,293 +116,852 @@ public class Session extends Thread {
 	
 	private void setSessionId(String sessionId) throws MathLinkException, IOException {
 		resources = server.getResources(sessionId);
-		System.out.println("Associating connection: " + socket.getRemoteSocketAddress() + " with Session ID: " + sessionId);
+		Log.info("Associating connection: " + remoteAddress + " with Session ID: " + sessionId);
 	}
 	
 	private void resetResources() throws MathLinkException, IOException {
-		server.newResources(resources.getSessionId());
-		System.out.println("Resetting Resources with Session ID: " + resources.getSessionId());
+		resources = server.newResources(resources.getSessionId());
+		Log.info("Resetting Resources with Session ID: " + resources.getSessionId());
 	}
 	
-	private String readLine(InputStreamReader in) {
-		StringBuilder line = new StringBuilder();
+	/**
+	 * Called on the selector thread when the channel is readable.
+	 */
+	public void handleRead() {
+		try {
+			if (channel.read(in) == -1) {
+				endOfStream();
+				return;
+			}
+		} catch (IOException e) {
+			endOfStream();
+			return;
+		}
 		
-		while (running && server.isRunning()) {
-			try {
-				int val = in.read();
-				
-				if (val == -1) {
-					running = false;
-					continue;
+		in.flip();
+		while (running && parse()) {
+			continue;
+		}
+		in.compact();
+		
+		// Make room for a line or payload that does not fit in the buffer, and
+		// give the memory back once it has been consumed
+		if (needed > in.capacity()) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(in.capacity() * 2, needed));
+			in.flip();
+			grown.put(in);
+			in = grown;
+		} else if (in.position() == 0 && in.capacity() > BUFFER_SIZE) {
+			in = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+	}
+	
+	/**
+	 * Consumes one command line, payload or frame from the input buffer.
+	 * @return false if more bytes are needed, which are then in needed.
+	 */
+	private boolean parse() {
+		int start = in.position();
+		needed = 0;
+		
+		if (inputVersion == 2)
+			return parseFrame();
+		
+		if (readsize == -1) {
+			for (int i = start; i < in.limit(); i++) {
+				if (in.get(i) == '\n') {
+					String line = decode(start, i - start);
+					if (line.indexOf('\r') != -1)
+						line = line.replace("\r", "");
+					in.position(i + 1);
+					received(line, null);
+					return true;
 				}
-				
-				if ((char)val == '\r') {
-					continue;
+			}
+			
+			if (start == 0 && in.limit() == in.capacity())
+				needed = in.capacity() * 2;
+			return false;
+		}
+		
+		if (in.remaining() < readsize) {
+			needed = readsize;
+			return false;
+		}
+		
+		String data = decode(start, readsize);
+		in.position(start + readsize);
+		readsize = -1;
+		
+		if (Log.isDebugEnabled())
+			Log.debug("From " + remoteAddress + ": " + Log.payload(data));
+		final String command = pendingCommand;
+		final String args = pendingArgs;
+		final String payload = data;
+		final String id = pendingRequestId;
+		pendingCommand = null;
+		pendingArgs = null;
+		pendingRequestId = null;
+		
+		enqueue(new Runnable() {
+			public void run() {
+				dispatch(command, args, payload, id);
+			}
+		});
+		return true;
+	}
+	
+	private boolean parseFrame() {
+		int start = in.position();
+		if (in.remaining() < 4) {
+			needed = 4;
+			return false;
+		}
+		
+		int length = in.getInt(start);
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			final String message = "exception -- Invalid frame length: " + length;
+			enqueue(new Runnable() {
+				public void run() {
+					send(message);
 				}
-				
-				if ((char)val == '\n') {
-					return line.toString();
+			});
+			endOfStream();
+			return false;
+		}
+		
+		if (in.remaining() < 4 + length) {
+			needed = 4 + length;
+			return false;
+		}
+		
+		int end = start + 4 + length;
+		int newline = end;
+		for (int i = start + 4; i < end; i++) {
+			if (in.get(i) == '\n') {
+				newline = i;
+				break;
+			}
+		}
+		
+		String line = decode(start + 4, newline - start - 4);
+		String body = newline < end ? decode(newline + 1, end - newline - 1) : null;
+		in.position(end);
+		received(line, body);
+		return true;
+	}
+	
+	private String decode(int offset, int length) {
+		return new String(in.array(), in.arrayOffset() + offset, length, UTF8);
+	}
+	
+	/**
+	 * Handles a command line. In protocol 2 the payload arrives in the same
+	 * frame as body, in protocol 1 it follows as a separate byte count.
+	 */
+	private void received(String data, String body) {
+		if (Log.isDebugEnabled())
+			Log.debug("From " + remoteAddress + ": " + Log.payload(data));
+		
+		String command = null;
+		String args = null;
+		
+		if (data.indexOf(" ") != -1) {
+			command = data.substring(0, data.indexOf(" "));
+			args = data.substring(data.indexOf(" ") + 1);
+		} else {
+			command = data;
+		}
+		
+		// Switching protocols has to happen before the next command is parsed
+		if (command.equals("protocol")) {
+			final int version = "2".equals(args) ? 2 : "1".equals(args) ? 1 : -1;
+			if (version != -1)
+				inputVersion = version;
+			
+			enqueue(new Runnable() {
+				public void run() {
+					if (version == -1) {
+						send("exception -- Unsupported protocol");
+						return;
+					}
+					send("okay -- protocol " + version + " utf-8");
+					outputVersion = version;
 				}
-				
-				line.append((char)val);
-				
-			} catch (SocketTimeoutException e) {
-				continue;
-			} catch (IOException e) {
-				running = false;
-				continue;
+			});
+			return;
+		}
+		
+		// Aborts take effect as soon as they are read, without waiting for the
+		// earlier commands of this connection or the session's lock. Another
+		// connection can abort a session by naming it: abort [<sessid>]
+		if (command.equals("abort")) {
+			final String fargs = args;
+			Metrics.count("command.abort");
+			final Resources target = args == null ? resources : server.findResources(args.trim());
+			if (target != null)
+				target.abort();
+			
+			enqueue(new Runnable() {
+				public void run() {
+					// Still waiting for this connection's sessid
+					if (target == null && fargs == null && resources != null) {
+						resources.abort();
+						send("okay -- Abort requested for Session ID: " + resources.getSessionId());
+					} else if (target == null)
+						send("exception -- No such session");
+					else
+						send("okay -- Abort requested for Session ID: " + target.getSessionId());
+				}
+			});
+			return;
+		}
+		
+		// Pipelined evaluations are tagged with a client chosen request ID:
+		// submit <id> <execute|image|intexec|document|execdoc> [<options>] [<length>]
+		if (command.equals("submit") && args != null) {
+			String[] parts = args.split(" ", 3);
+			if ((parts.length == 3 || (body != null && parts.length == 2)) && hasPayload(parts[1])) {
+				pendingRequestId = parts[0];
+				command = parts[1];
+				args = parts.length == 3 ? parts[2] : null;
 			}
 		}
 		
-		return null;
+		// Protocol 2 carries the payload in the frame body
+		if (body != null && hasPayload(command)) {
+			if (Log.isDebugEnabled())
+				Log.debug("From " + remoteAddress + ": " + Log.payload(body));
+			final String fcommand = command;
+			final String fargs = args;
+			final String payload = body;
+			final String id = pendingRequestId;
+			pendingRequestId = null;
+			enqueue(new Runnable() {
+				public void run() {
+					dispatch(fcommand, fargs, payload, id);
+				}
+			});
+			return;
+		}
+		
+		// These commands are followed by a payload of the given byte length
+		// Options may precede the length: execdoc [stop] <length>, document [parallel] <length>;
+		// all of them take deadline=<ms>
+		if (hasPayload(command)) {
+			int space = args == null ? -1 : args.lastIndexOf(' ');
+			int length = -1;
+			try {
+				length = Integer.parseInt(space == -1 ? args : args.substring(space + 1));
+			} catch (NumberFormatException e) {
+				// Reported below
+			}
+			
+			if (length >= 0 && length <= MAX_FRAME_SIZE) {
+				readsize = length;
+				pendingArgs = space == -1 ? null : args.substring(0, space);
+				pendingCommand = command;
+				return;
+			}
+			
+			final String message = status(pendingRequestId) + " -- Invalid length: " + args;
+			pendingRequestId = null;
+			enqueue(new Runnable() {
+				public void run() {
+					send(message);
+				}
+			});
+			return;
+		}
+		
+		final String fcommand = command;
+		final String fargs = args;
+		enqueue(new Runnable() {
+			public void run() {
+				dispatch(fcommand, fargs, null, null);
+			}
+		});
+	}
+	
+	private static boolean hasPayload(String command) {
+		return command.equals("execute") || command.equals("image") || command.equals("intexec") || 
+				command.equals("document") || command.equals("execdoc");
+	}
+	
+	private void endOfStream() {
+		running = false;
+		if (key != null && key.isValid())
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		
+		// Let queued commands finish, then close once their output is flushed
+		enqueue(new Runnable() {
+			public void run() {
+				closeWhenFlushed();
+			}
+		});
+	}
+	
+	private void closeWhenFlushed() {
+		synchronized (out) {
+			closing = true;
+		}
+		server.requestInterestUpdate(this);
 	}
 	
-	private String readData(InputStreamReader in, int size) {
-		StringBuilder line = new StringBuilder();
+	/**
+	 * Queues a command for execution. Commands of a single connection never
+	 * run concurrently and always run in the order they were received.
+	 */
+	private void enqueue(Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		
+		boolean accepted = server.submit(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
 		
-		while (running && server.isRunning()) {
+		if (!accepted) {
+			synchronized (tasks) {
+				tasks.clear();
+				scheduled = false;
+			}
+		}
+	}
+	
+	private void drain() {
+		while (true) {
+			Runnable task;
+			synchronized (tasks) {
+				task = tasks.poll();
+				if (task == null) {
+					scheduled = false;
+					return;
+				}
+			}
+			
 			try {
-				int val = in.read();
-				
-				if (val == -1) {
-					running = false;
+				task.run();
+			} catch (RuntimeException e) {
+				send("exception -- " + e.getMessage());
+				Log.error(e);
+			}
+		}
+	}
+	
+	public void sendInline(String data) {
+		byte[] bytes = data.getBytes(UTF8);
+		StringBuilder header = new StringBuilder("inline");
+		
+		if (outputVersion == 1)
+			header.append(' ').append(bytes.length + 1);
+		if (requestId != null)
+			header.append(' ').append(requestId);
+		
+		if (Log.isDebugEnabled()) {
+			Log.debug("To " + remoteAddress + ": " + header);
+			Log.debug("To " + remoteAddress + ": " + Log.payload(data));
+		}
+		write(encode(header, bytes));
+	}
+	
+	/**
+	 * Sends a text file as a series of inline frames of at most CHUNK_SIZE
+	 * characters, waiting for the client to take each one before the queue
+	 * grows past a few of them. Returns the number of characters sent.
+	 */
+	public long sendInline(File file) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(file), UTF8);
+		char[] buffer = new char[CHUNK_SIZE];
+		long total = 0;
+		
+		try {
+			int length = 0;
+			int read;
+			while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+				length += read;
+				if (length < buffer.length)
 					continue;
-				}
 				
-				line.append((char)val);
-				if (line.length() == size) {
-					return line.toString();
-				}
+				// Keep surrogate pairs in one chunk
+				int split = Character.isHighSurrogate(buffer[length - 1]) ? length - 1 : length;
+				sendInline(new String(buffer, 0, split));
+				total += split;
+				length -= split;
+				if (length > 0)
+					buffer[0] = buffer[split];
 				
-			} catch (SocketTimeoutException e) {
-				continue;
-			} catch (IOException e) {
-				running = false;
-				continue;
+				if (!awaitQueue(MAX_QUEUED_CHUNKS))
+					return total;
+			}
+			
+			if (length > 0) {
+				sendInline(new String(buffer, 0, length));
+				total += length;
 			}
+		} finally {
+			in.close();
 		}
 		
-		return null;
+		return total;
 	}
 	
-	public void sendInline(String data) {
-		send("inline " + (data.length() + 1));
-		send(data);
+	/**
+	 * Waits until no more than limit replies are queued for the selector
+	 * thread. Returns false if the connection is closing.
+	 */
+	private boolean awaitQueue(int limit) {
+		synchronized (out) {
+			try {
+				while (out.size() > limit && !closed && !closing)
+					out.wait(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return !closed && !closing;
+		}
 	}
 	
 	private void send(String reply) {
-		System.out.println("To " + socket.getRemoteSocketAddress() + ": " + reply);
-		out.println(reply);
+		if (Log.isDebugEnabled())
+			Log.debug("To " + remoteAddress + ": " + Log.payload(reply));
+		write(encode(reply, null));
 	}
 	
-	@Override
-  public void run() {
-		try {
-			in = new InputStreamReader(socket.getInputStream());
-			out = new PrintWriter(socket.getOutputStream(), true);
-		} catch (IOException e) {
-			System.out.println("Socket is shutdown");
-			running = false;
-		}
+	/**
+	 * Encodes a reply line and optional payload into a single buffer so that
+	 * each message costs one write.
+	 */
+	private ByteBuffer encode(CharSequence line, byte[] body) {
+		byte[] header = line.toString().getBytes(UTF8);
+		int bodyLength = body == null ? 0 : body.length + 1;
 		
-		int state = 0;
-		int readsize = -1;
-		send("okay");
+		if (outputVersion == 2) {
+			ByteBuffer buffer = ByteBuffer.allocate(4 + header.length + bodyLength);
+			buffer.putInt(header.length + bodyLength);
+			buffer.put(header);
+			if (body != null) {
+				buffer.put((byte)'\n');
+				buffer.put(body);
+			}
+			buffer.flip();
+			return buffer;
+		}
 		
-		while (running && server.isRunning()) {
-			String data = null;
-			
-			String command = null;
-			String args = null;
+		ByteBuffer buffer = ByteBuffer.allocate(header.length + 1 + bodyLength);
+		buffer.put(header);
+		buffer.put((byte)'\n');
+		if (body != null) {
+			buffer.put(body);
+			buffer.put((byte)'\n');
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	private void write(ByteBuffer buffer) {
+		Metrics.record(Metrics.SEND_BYTES, buffer.remaining());
+		synchronized (out) {
+			if (closed || closing)
+				return;
 			
-			if (readsize == -1) {
-				data = readLine(in);
-				
-				if (data == null) {
+			if (out.isEmpty()) {
+				try {
+					channel.write(buffer);
+				} catch (IOException e) {
 					running = false;
-					continue;
+					closing = true;
 				}
 				
-				if (data.indexOf(" ") != -1) {
-					command = data.substring(0, data.indexOf(" "));
-					args = data.substring(data.indexOf(" ") + 1);
-				} else {
-					command = data;
-				}
-			} else {
-				data = readData(in, readsize);
-
-				if (data == null) {
-					running = false;
-					continue;
+				if (closing || !buffer.hasRemaining())
+					return;
+			}
+			
+			out.add(buffer);
+		}
+		
+		server.requestInterestUpdate(this);
+	}
+	
+	/**
+	 * Called on the selector thread when the channel is writable.
+	 */
+	public void handleWrite() {
+		synchronized (out) {
+			try {
+				while (!out.isEmpty()) {
+					ByteBuffer buffer = out.getFirst();
+					channel.write(buffer);
+					if (buffer.hasRemaining())
+						return;
+					out.removeFirst();
 				}
+			} catch (IOException e) {
+				out.clear();
+				closing = true;
+			} finally {
+				out.notifyAll();
 			}
+		}
+		
+		updateInterest();
+	}
+	
+	/**
+	 * Called on the selector thread to sync the interest set with the
+	 * pending output, and to finish closing the connection.
+	 */
+	public void updateInterest() {
+		boolean finished;
+		synchronized (out) {
+			if (closed || key == null || !key.isValid())
+				return;
 			
-			System.out.println("From " + socket.getRemoteSocketAddress() + ": " + data);
+			if (!out.isEmpty()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
 			
-			if (state == 0) {
-				if (command.equals("quit")) {
-					send("okay -- Good Bye");
-					running = false;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			finished = closing;
+		}
+		
+		if (finished)
+			close();
+	}
+	
+	/**
+	 * Untagged requests are answered with okay/exception, pipelined ones
+	 * with done/failed followed by their request ID.
+	 */
+	private String status(String requestId) {
+		return requestId == null ? "exception" : "failed " + requestId;
+	}
+	
+	private void complete(String requestId) {
+		send(requestId == null ? "okay" : "done " + requestId);
+	}
+	
+	private void complete(String requestId, String comment) {
+		send((requestId == null ? "okay" : "done " + requestId) + " -- " + comment);
+	}
+	
+	/**
+	 * Schedules an abort of the session's evaluations for when the request's
+	 * deadline passes, given as a deadline=<ms> option or defaulting to
+	 * tmjlink.evaluation.deadline. Returns null if there is no deadline.
+	 */
+	private ScheduledFuture<?> startDeadline(String args) {
+		long millis = server.getDeadline();
+		if (args != null) {
+			for (String option : args.split(" ")) {
+				if (!option.startsWith("deadline="))
 					continue;
+				try {
+					millis = Long.parseLong(option.substring(9));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid deadline: " + option.substring(9));
 				}
-				
-				if (command.equals("sessid")) {
-					try {
-						setSessionId(args);
-						send("okay -- Session ID set to: " + resources.getSessionId());
-						state = 1;
-					} catch (IOException e) {
-						send("exception -- " + e.getMessage());
-						e.printStackTrace();
-					} catch (MathLinkException e) {
-						send("exception -- " + e.getMessage());
-						e.printStackTrace();
-					}
-					continue;
+			}
+		}
+		
+		if (millis <= 0)
+			return null;
+		
+		final Resources target = resources;
+		final long limit = millis;
+		return server.schedule(new Runnable() {
+			public void run() {
+				Log.warn("Deadline of " + limit + "ms passed, aborting evaluation in Session ID: " + target.getSessionId());
+				target.abort();
+			}
+		}, millis);
+	}
+	
+	private static void cancel(ScheduledFuture<?> deadline) {
+		if (deadline != null)
+			deadline.cancel(false);
+	}
+	
+	private void dispatch(String command, String args, String data, String requestId) {
+		synchronized (out) {
+			if (closing || closed)
+				return;
+		}
+		
+		Metrics.count(COMMANDS.contains(command) ? "command." + command : "command.invalid");
+		
+		if (command.equals("stats")) {
+			send("stats " + Metrics.toJson());
+			return;
+		}
+		
+		if (command.equals("quit")) {
+			send("okay -- Good Bye");
+			running = false;
+			closeWhenFlushed();
+			return;
+		}
+		
+		if (resources == null) {
+			if (command.equals("sessid")) {
+				try {
+					setSessionId(args);
+					send("okay -- Session ID set to: " + resources.getSessionId());
+				} catch (IOException e) {
+					send("exception -- " + e.getMessage());
+					Log.error(e);
+				} catch (MathLinkException e) {
+					send("exception -- " + e.getMessage());
+					Log.error(e);
 				}
-				
-				send("exception -- Invalid command (" + state + "): " + command);
-				continue;
+				return;
 			}
 			
-			if (state == 1) {
-				if (command.equals("quit")) {
-					send("okay -- Good Bye");
-					running = false;
-					continue;
-				}
-				
-				if (command.equals("execute")) {
-					readsize = Integer.parseInt(args);
-					state = 2;
-					continue;
-				}
-				
-				if (command.equals("image")) {
-					readsize = Integer.parseInt(args);
-					state = 3;
-					continue;
-				}
-				
-				if (command.equals("header")) {
-					try {
-						String renderedHtml = resources.render();
-						send("inline " + (renderedHtml.length() + 1));
-						send(renderedHtml);
-						send("okay");
-					} catch (Exception e) {
-						send("exception -- " + e.getMessage());
-						e.printStackTrace();
-					}
-					continue;
-				}
+			send(status(requestId) + " -- Invalid command (0): " + command);
+			return;
+		}
+		
+		// Commands of all connections to a session take turns, and pick up
+		// Resources that a reset on another connection has replaced
+		String sessionId = resources.getSessionId();
+		synchronized (server.lockFor(sessionId)) {
+			try {
+				resources = server.getResources(sessionId);
+			} catch (IOException e) {
+				send(status(requestId) + " -- " + e.getMessage());
+				Log.error(e);
+				return;
+			} catch (MathLinkException e) {
+				send(status(requestId) + " -- " + e.getMessage());
+				Log.error(e);
+				return;
+			}
+			
+			dispatchSession(command, args, data, requestId);
+		}
+	}
+	
+	private void dispatchSession(String command, String args, String data, String requestId) {
+		if (command.equals("header")) {
+			try {
+				// header since <version> only returns what changed, unless the
+				// client has to start over, which is announced with resync
+				long since = -1;
+				if (args != null && args.startsWith("since "))
+					since = Long.parseLong(args.substring(6).trim());
 				
-				if (command.equals("clear")) {
-					int resourceSize = resources.getSize();
-					resources.release();
-					send("okay -- Resources released: " + resourceSize);
-					continue;
+				if (since != -1 && resources.isResyncRequired(since)) {
+					send("resync");
+					since = -1;
 				}
 				
-				if (command.equals("reset")) {
-					try {
-						resetResources();
-						send("okay -- All resources reset");
-					} catch (MathLinkException e) {
-						send("exception -- " + e.getMessage());
-						e.printStackTrace();
-					} catch (IOException e) {
-						send("exception -- " + e.getMessage());
-						e.printStackTrace();
-					}
-					continue;
+				long version = resources.getVersion();
+				String renderedHtml = resources.render(since);
+				if (since == -1 || renderedHtml.length() > 0)
+					sendInline(renderedHtml);
+				send("okay -- version " + version);
+			} catch (Exception e) {
+				send("exception -- " + e.getMessage());
+				Log.error(e);
+			}
+			return;
+		}
+		
+		if (command.equals("clear")) {
+			int resourceSize = resources.getSize();
+			resources.release();
+			send("okay -- Resources released: " + resourceSize);
+			return;
+		}
+		
+		if (command.equals("reset")) {
+			try {
+				resetResources();
+				send("okay -- All resources reset");
+			} catch (MathLinkException e) {
+				send("exception -- " + e.getMessage());
+				Log.error(e);
+			} catch (IOException e) {
+				send("exception -- " + e.getMessage());
+				Log.error(e);
+			}
+			return;
+		}
+		
+		if (command.equals("suggest")) {
+			try {
+				// suggest [<prefix> [<limit>]]; the prefix may be empty, as
+				// in "suggest  1000", so the arguments are not trimmed
+				String prefix = "";
+				int limit = Integer.MAX_VALUE;
+				if (args != null) {
+					String[] parts = args.split(" ", 2);
+					prefix = parts[0];
+					if (parts.length > 1 && parts[1].trim().length() > 0)
+						limit = Integer.parseInt(parts[1].trim());
 				}
 				
-				if (command.equals("suggest")) {
-					try {
-						String suggestions = resources.getSuggestions();
-						send("suggestions " + suggestions);
-					} catch (MathLinkException e) {
-						send("exception -- " + e.getMessage());
-						e.printStackTrace();
-					} catch (ExprFormatException e) {
-						send("exception -- " + e.getMessage());
-						e.printStackTrace();
-					}
-					continue;
+				String suggestions = SymbolIndex.toJson(resources.getSuggestions(prefix, limit));
+				send("suggestions " + suggestions);
+			} catch (MathLinkException e) {
+				send("exception -- " + e.getMessage());
+				Log.error(e);
+			} catch (ExprFormatException e) {
+				send("exception -- " + e.getMessage());
+				Log.error(e);
+			} catch (NumberFormatException e) {
+				send("exception -- Invalid limit: " + e.getMessage());
+			}
+			return;
+		}
+		
+		if (data != null && (command.equals("execute") || command.equals("image"))) {
+			this.requestId = requestId;
+			ScheduledFuture<?> deadline = null;
+			try {
+				deadline = startDeadline(args);
+				resources.evaluate(data, command.equals("image"), this);
+				complete(requestId);
+			} catch (Exception e) {
+				send(status(requestId) + " -- " + e.getMessage());
+				Log.error(e);
+			} finally {
+				cancel(deadline);
+				this.requestId = null;
+			}
+			return;
+		}
+		
+		// The statements of a document are separated by NUL characters
+		if (data != null && command.equals("document")) {
+			this.requestId = requestId;
+			ScheduledFuture<?> deadline = null;
+			try {
+				deadline = startDeadline(args);
+				List<String> statements = Arrays.asList(data.split("\0"));
+				boolean parallel = args != null && Arrays.asList(args.split(" ")).contains("parallel");
+				int evaluated = resources.evaluateDocument(statements, parallel, this);
+				complete(requestId, "Evaluated " + evaluated + " of " + statements.size() + " statements");
+			} catch (Exception e) {
+				send(status(requestId) + " -- " + e.getMessage());
+				Log.error(e);
+			} finally {
+				cancel(deadline);
+				this.requestId = null;
+			}
+			return;
+		}
+		
+		// Each statement of a batch is prefixed with e (execute) or i (image);
+		// statements are separated by NUL characters
+		if (data != null && command.equals("execdoc")) {
+			this.requestId = requestId;
+			ScheduledFuture<?> deadline = null;
+			try {
+				deadline = startDeadline(args);
+				String[] entries = data.split("\0");
+				List<String> statements = new ArrayList<String>(entries.length);
+				boolean[] images = new boolean[entries.length];
+				for (int i = 0; i < entries.length; i++) {
+					images[i] = entries[i].startsWith("i");
+					statements.add(entries[i].length() > 0 ? entries[i].substring(1) : "");
 				}
 				
-				if (command.equals("intexec")) {
-					readsize = Integer.parseInt(args);
-					state = 4;
-					continue;
+				boolean stopOnMessage = args != null && Arrays.asList(args.split(" ")).contains("stop");
+				BatchResult result = resources.evaluateBatch(statements, images, stopOnMessage, this);
+				send("summary " + result.toJson());
+				if (result.getError() != null) {
+					send(status(requestId) + " -- " + result.getError().getMessage());
+					Log.error(result.getError());
+				} else {
+					complete(requestId, "Evaluated " + result.getEvaluated() + " of " + statements.size() + 
+							" statements, " + result.getFailures() + " with messages or aborted");
 				}
-				
-				send("exception -- Invalid command (" + state + "): " + command);
-				continue;
+			} catch (Exception e) {
+				send(status(requestId) + " -- " + e.getMessage());
+				Log.error(e);
+			} finally {
+				cancel(deadline);
+				this.requestId = null;
 			}
-			
-			if (state == 2) {
-				try {
-					resources.evaluate(data, false, this);
-					send("okay");
-				} catch (Exception e) {
-					send("exception -- " + e.getMessage());
-					e.printStackTrace();
+			return;
+		}
+		
+		// fetch [<count>] streams the full text of a shortened result, the
+		// last one by default
+		if (command.equals("fetch")) {
+			this.requestId = requestId;
+			try {
+				int count = args == null ? -1 : Integer.parseInt(args.trim());
+				File file = resources.getFullOutput(count);
+				if (file == null) {
+					send(status(requestId) + " -- No shortened output" + (count == -1 ? "" : " for Out[" + count + "]"));
+				} else {
+					long chars = sendInline(file);
+					complete(requestId, "Sent " + Resources.commify(chars) + " characters");
 				}
-				
-				readsize = -1;
-				state = 1;
-				continue;
+			} catch (NumberFormatException e) {
+				send(status(requestId) + " -- Invalid output number: " + args);
+			} catch (IOException e) {
+				send(status(requestId) + " -- " + e.getMessage());
+				Log.error(e);
+			} finally {
+				this.requestId = null;
 			}
-			
-			if (state == 3) {
-				try {
-					resources.evaluate(data, true, this);
-					send("okay");
-				} catch (Exception e) {
-					send("exception -- " + e.getMessage());
-					e.printStackTrace();
-				}
+			return;
+		}
+		
+		// out <count> <operation> [<spec>] looks inside a result held by the
+		// server, see ExprQuery
+		if (command.equals("out")) {
+			this.requestId = requestId;
+			try {
+				String[] parts = args == null ? new String[0] : args.trim().split(" +");
+				if (parts.length < 2 || parts.length > 3)
+					throw new IllegalArgumentException("Usage: out <count> <operation> [<spec>]");
 				
-				readsize = -1;
-				state = 1;
-				continue;
-			}
-			
-			if (state == 4) {
+				int count;
 				try {
-					String result = resources.evaluate(data);
-					if (result != null) sendInline(result);
-					send("okay");
-				} catch (Exception e) {
-					send("exception -- " + e.getMessage());
-					e.printStackTrace();
+					count = Integer.parseInt(parts[0]);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid output number: " + parts[0]);
 				}
 				
-				readsize = -1;
-				state = 1;
-				continue;
+				long mark = System.nanoTime();
+				String answer = ExprQuery.answer(resources.getOutput(count), parts[1], parts.length > 2 ? parts[2] : null);
+				Metrics.record(Metrics.OUTPUT_QUERY, Metrics.since(mark));
+				sendInline(answer);
+				complete(requestId);
+			} catch (IllegalArgumentException e) {
+				send(status(requestId) + " -- " + e.getMessage());
+			} finally {
+				this.requestId = null;
 			}
-			
-			send("exception -- Invalid command (" + state + "): " + command);
+			return;
 		}
 		
-		System.out.println("Closing connection: " + socket.getRemoteSocketAddress());
-		
-		if (in != null) {
+		if (data != null && command.equals("intexec")) {
+			this.requestId = requestId;
 			try {
-				in.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+				String result = resources.evaluate(data);
+				if (result != null) sendInline(result);
+				complete(requestId);
+			} catch (Exception e) {
+				send(status(requestId) + " -- " + e.getMessage());
+				Log.error(e);
+			} finally {
+				this.requestId = null;
 			}
+			return;
 		}
 		
-		if (out != null) {
-			out.close();
-		}
-		
-		close();
+		send(status(requestId) + " -- Invalid command (1): " + command);
 	}
 }
@@ -0,0 +1,200 @@
+package com.shadanan.textmatejlink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.wolfram.jlink.MathLinkException;
+
+/**
+ * Maps session IDs to their Resources. The first connection asking for a
+ * session creates its Resources, launching or checking out a kernel; any
+ * connection asking for the same session meanwhile waits for that one
+ * launch instead of starting its own. Each session also has a lock that
+ * serializes the commands of all connections using it. Status and metrics
+ * read the registry without taking any lock.
+ */
+public class SessionRegistry {
+	public interface Factory {
+		Resources create(String sessionId) throws MathLinkException, IOException;
+	}
+	
+	private ConcurrentHashMap<String, Entry> entries = null;
+	private Factory factory = null;
+	
+	public SessionRegistry(Factory factory) {
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.factory = factory;
+	}
+	
+	private Entry entry(String sessionId) {
+		Entry entry = entries.get(sessionId);
+		if (entry == null) {
+			Entry created = new Entry();
+			entry = entries.putIfAbsent(sessionId, created);
+			if (entry == null)
+				entry = created;
+		}
+		return entry;
+	}
+	
+	/**
+	 * The lock held while a command works with the session's Resources.
+	 */
+	public Object lockFor(String sessionId) {
+		return entry(sessionId).lock;
+	}
+	
+	/**
+	 * Returns the session's Resources, creating them if needed. Concurrent
+	 * callers share a single creation; if it fails, all of them get the
+	 * error and the next call tries again.
+	 */
+	public Resources get(String sessionId) throws MathLinkException, IOException {
+		Entry entry = entry(sessionId);
+		
+		while (true) {
+			FutureTask<Resources> task = entry.task.get();
+			if (task == null) {
+				FutureTask<Resources> created = newTask(sessionId);
+				if (!entry.task.compareAndSet(null, created))
+					continue;
+				created.run();
+				task = created;
+			}
+			return await(entry, task);
+		}
+	}
+	
+	/**
+	 * Returns the session's Resources if they are ready, without creating
+	 * them, waiting for them or taking the session's lock.
+	 */
+	public Resources find(String sessionId) {
+		Entry entry = entries.get(sessionId);
+		return entry == null ? null : peek(entry.task.get(), false);
+	}
+	
+	/**
+	 * Closes the session's Resources, if any, and creates new ones. Waits
+	 * for commands running in the session to finish first.
+	 */
+	public Resources replace(String sessionId) throws MathLinkException, IOException {
+		Entry entry = entry(sessionId);
+		
+		synchronized (entry.lock) {
+			Resources previous = peek(entry.task.get(), true);
+			if (previous != null) {
+				Log.info("Releasing Resources for Session ID: " + sessionId);
+				previous.close();
+			}
+			
+			FutureTask<Resources> created = newTask(sessionId);
+			entry.task.set(created);
+			created.run();
+			return await(entry, created);
+		}
+	}
+	
+	/**
+	 * The sessions whose Resources are ready, without waiting for any.
+	 */
+	public Map<String, Resources> snapshot() {
+		TreeMap<String, Resources> result = new TreeMap<String, Resources>();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			Resources resources = peek(entry.getValue().task.get(), false);
+			if (resources != null)
+				result.put(entry.getKey(), resources);
+		}
+		return result;
+	}
+	
+	public List<Resources> getAll() {
+		ArrayList<Resources> result = new ArrayList<Resources>();
+		for (Entry entry : entries.values()) {
+			Resources resources = peek(entry.task.get(), false);
+			if (resources != null)
+				result.add(resources);
+		}
+		return result;
+	}
+	
+	public int size() {
+		return getAll().size();
+	}
+	
+	/**
+	 * Suspends every session on server shutdown and empties the registry.
+	 */
+	public void suspendAll() {
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			Resources resources = peek(entry.getValue().task.get(), true);
+			if (resources != null) {
+				Log.info("Suspending Resources for Session ID: " + entry.getKey());
+				resources.suspend();
+			}
+		}
+		entries.clear();
+	}
+	
+	private FutureTask<Resources> newTask(final String sessionId) {
+		return new FutureTask<Resources>(new Callable<Resources>() {
+			public Resources call() throws MathLinkException, IOException {
+				Log.info("Allocating Resources for Session ID: " + sessionId);
+				return factory.create(sessionId);
+			}
+		});
+	}
+	
+	private Resources await(Entry entry, FutureTask<Resources> task) throws MathLinkException, IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the session's kernel");
+		} catch (ExecutionException e) {
+			entry.task.compareAndSet(task, null);
+			
+			Throwable cause = e.getCause();
+			if (cause instanceof MathLinkException)
+				throw (MathLinkException)cause;
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(String.valueOf(cause));
+		}
+	}
+	
+	/**
+	 * Returns the Resources of a task that completed successfully, waiting
+	 * for it to complete only if asked to.
+	 */
+	private static Resources peek(FutureTask<Resources> task, boolean wait) {
+		if (task == null || (!wait && !task.isDone()))
+			return null;
+		
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+	
+	static class Entry {
+		private final Object lock = new Object();
+		private final AtomicReference<FutureTask<Resources>> task = new AtomicReference<FutureTask<Resources>>();
+	}
+}
@@ -0,0 +1,144 @@
+package com.shadanan.textmatejlink;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A document statement reduced to what incremental execution needs: its
+ * normalized text and the symbols it defines and reads. The analysis is a
+ * single scan over the tokens and errs on the side of reporting too many
+ * definitions, which only costs extra re-evaluations.
+ */
+public class Statement {
+	// Functions that change the definitions of their first argument
+	private static final HashSet<String> MUTATORS = new HashSet<String>(Arrays.asList(
+			"Set", "SetDelayed", "Unset", "Clear", "ClearAll", "Remove", "SetAttributes",
+			"ClearAttributes", "Protect", "Unprotect", "SetOptions", "AppendTo", "PrependTo",
+			"AddTo", "SubtractFrom", "TimesBy", "DivideBy", "Increment", "Decrement",
+			"PreIncrement", "PreDecrement"));
+	
+	private String text = null;
+	private HashSet<String> defines = null;
+	private HashSet<String> reads = null;
+	private boolean history = false;
+	
+	public Statement(String source) {
+		this.text = MemoCache.normalize(source);
+		this.defines = new HashSet<String>();
+		this.reads = new HashSet<String>();
+		analyze();
+	}
+	
+	private void analyze() {
+		int length = text.length();
+		ArrayList<Integer> segments = new ArrayList<Integer>();
+		ArrayList<Integer> nameStarts = new ArrayList<Integer>();
+		ArrayList<String> names = new ArrayList<String>();
+		boolean defineNext = false;
+		segments.add(0);
+		
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			char next = i + 1 < length ? text.charAt(i + 1) : 0;
+			
+			if (c == '"') {
+				while (++i < length && text.charAt(i) != '"') {
+					if (text.charAt(i) == '\\')
+						i++;
+				}
+			} else if (Character.isLetter(c) || c == '$') {
+				int start = i;
+				while (i + 1 < length && (Character.isLetterOrDigit(text.charAt(i + 1)) ||
+						text.charAt(i + 1) == '$' || text.charAt(i + 1) == '`'))
+					i++;
+				
+				// Pattern names such as x_ are local to their definition
+				if (i + 1 < length && text.charAt(i + 1) == '_')
+					continue;
+				
+				String name = text.substring(start, i + 1);
+				if (defineNext) {
+					defines.add(name);
+					defineNext = false;
+				}
+				if (MUTATORS.contains(name) && i + 1 < length && text.charAt(i + 1) == '[')
+					defineNext = true;
+				
+				reads.add(name);
+				names.add(name);
+				nameStarts.add(start);
+			} else if (c == '[' || c == '(' || c == '{') {
+				segments.add(i + 1);
+			} else if (c == ']' || c == ')' || c == '}') {
+				if (segments.size() > 1)
+					segments.remove(segments.size() - 1);
+			} else if (c == ',' || c == ';') {
+				segments.set(segments.size() - 1, i + 1);
+			} else if (c == '%') {
+				history = true;
+			} else if (c == '=') {
+				if (next == '=') {
+					i += (i + 2 < length && text.charAt(i + 2) == '=') ? 2 : 1;
+				} else if (next == '!' && i + 2 < length && text.charAt(i + 2) == '=') {
+					i += 2;
+				} else {
+					// Everything named on the left hand side is (re)defined
+					int segment = segments.get(segments.size() - 1);
+					for (int j = names.size() - 1; j >= 0 && nameStarts.get(j) >= segment; j--)
+						defines.add(names.get(j));
+				}
+			} else if ((c == '!' || c == '<' || c == '>') && next == '=') {
+				i++;
+			} else if ((c == '+' || c == '-') && next == c) {
+				if (!names.isEmpty() && i > 0 && isNameEnd(text.charAt(i - 1)))
+					defines.add(names.get(names.size() - 1));
+				else
+					defineNext = true;
+				i++;
+			}
+		}
+	}
+	
+	private static boolean isNameEnd(char c) {
+		return Character.isLetterOrDigit(c) || c == '$' || c == ']';
+	}
+	
+	public String getText() {
+		return text;
+	}
+	
+	public Set<String> getDefines() {
+		return defines;
+	}
+	
+	public Set<String> getReads() {
+		return reads;
+	}
+	
+	/**
+	 * True if this statement refers to the previous output (%).
+	 */
+	public boolean readsHistory() {
+		return history;
+	}
+	
+	/**
+	 * True if this statement reads or redefines any of the given symbols.
+	 */
+	public boolean dependsOn(Set<String> symbols) {
+		if (symbols.isEmpty())
+			return false;
+		
+		for (String name : reads) {
+			if (symbols.contains(name))
+				return true;
+		}
+		for (String name : defines) {
+			if (symbols.contains(name))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,146 @@
+package com.shadanan.textmatejlink;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable, sorted array of symbol names answering prefix queries with
+ * a binary search. Sessions build theirs by merging the symbols shipped in
+ * Support/tools/symbols.json with the names their kernel reports.
+ */
+public class SymbolIndex {
+	public static final SymbolIndex EMPTY = new SymbolIndex(new String[0]);
+	
+	private final String[] symbols;
+	
+	private SymbolIndex(String[] sorted) {
+		this.symbols = sorted;
+	}
+	
+	public static SymbolIndex of(Collection<String> names) {
+		String[] sorted = names.toArray(new String[names.size()]);
+		Arrays.sort(sorted);
+		return new SymbolIndex(unique(sorted, sorted.length));
+	}
+	
+	/**
+	 * Reads every string literal of a JSON file such as symbols.json, which
+	 * is a list of lists of names.
+	 */
+	public static SymbolIndex load(File file) throws IOException {
+		ArrayList<String> names = new ArrayList<String>();
+		Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), Session.UTF8));
+		
+		try {
+			StringBuilder name = null;
+			int c;
+			while ((c = in.read()) != -1) {
+				if (name == null) {
+					if (c == '"')
+						name = new StringBuilder();
+				} else if (c == '"') {
+					names.add(name.toString());
+					name = null;
+				} else if (c == '\\') {
+					c = in.read();
+					if (c != -1)
+						name.append((char)c);
+				} else {
+					name.append((char)c);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		
+		return of(names);
+	}
+	
+	/**
+	 * Returns a new index containing these symbols plus the given names.
+	 */
+	public SymbolIndex merge(Collection<String[]> groups) {
+		int size = symbols.length;
+		for (String[] group : groups)
+			size += group.length;
+		
+		String[] merged = new String[size];
+		System.arraycopy(symbols, 0, merged, 0, symbols.length);
+		int pos = symbols.length;
+		for (String[] group : groups) {
+			System.arraycopy(group, 0, merged, pos, group.length);
+			pos += group.length;
+		}
+		
+		Arrays.sort(merged);
+		return new SymbolIndex(unique(merged, merged.length));
+	}
+	
+	private static String[] unique(String[] sorted, int length) {
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			if (count == 0 || !sorted[i].equals(sorted[count - 1]))
+				sorted[count++] = sorted[i];
+		}
+		return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+	}
+	
+	public int size() {
+		return symbols.length;
+	}
+	
+	public boolean contains(String name) {
+		return Arrays.binarySearch(symbols, name) >= 0;
+	}
+	
+	/**
+	 * Returns up to limit symbols starting with prefix, in sorted order.
+	 */
+	public List<String> query(String prefix, int limit) {
+		int pos = Arrays.binarySearch(symbols, prefix);
+		if (pos < 0)
+			pos = -pos - 1;
+		
+		ArrayList<String> result = new ArrayList<String>();
+		while (pos < symbols.length && result.size() < limit && symbols[pos].startsWith(prefix)) {
+			result.add(symbols[pos]);
+			pos++;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Formats names as a JSON list of strings.
+	 */
+	public static String toJson(List<String> names) {
+		StringBuilder result = new StringBuilder();
+		result.append("[");
+		
+		for (int i = 0; i < names.size(); i++) {
+			if (i > 0)
+				result.append(",");
+			
+			String name = names.get(i);
+			result.append('"');
+			for (int j = 0; j < name.length(); j++) {
+				char c = name.charAt(j);
+				if (c == '"' || c == '\\')
+					result.append('\\');
+				result.append(c);
+			}
+			result.append('"');
+		}
+		
+		result.append("]");
+		return result.toString();
+	}
+}
@@ -2,7 +2,7 @@ package com.shadanan.textmatejlink;
 
 public class TextMateJLink {
 	public static void main(String args[]) throws InterruptedException {
-		System.out.println("Server starting up...");
+		Log.info("Server starting up...");
 		String cacheFolder = args[0];
 		int textMatePid = Integer.parseInt(args[1]);
 		